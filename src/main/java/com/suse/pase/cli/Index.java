@@ -2,9 +2,15 @@ package com.suse.pase.cli;
 
 import com.suse.pase.index.IndexWriter;
 import com.suse.pase.directory.DirectoryIndexer;
+import com.suse.pase.directory.DirectoryWatcher;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -12,10 +18,30 @@ import picocli.CommandLine.Parameters;
 
 @Command(name = "index", description = "Index a directory of sources")
 public class Index implements Callable<Integer> {
+    private static Logger LOG = Logger.getLogger(Index.class.getName());
+
     @Option(names = { "-r", "--recursion-limit" }, paramLabel = "RECURSION_LIMIT", defaultValue = "2", description = "the number of nested archives to unpack")
     int recursionLimit;
     @Option(names = { "-s", "--follow-symlinks" }, description = "follow symbolic links when indexing")
     boolean followSymlinks;
+    @Option(names = { "--archive-fan-out" }, paramLabel = "BUDGET_MB", defaultValue = "0", description = "index files in archives with all threads while decompressing, keeping up to BUDGET_MB of them in memory (0 disables)")
+    int fanOutBudgetMB;
+    @Option(names = { "--largest-first" }, description = "walk the whole directory first, then index the most expensive files first")
+    boolean largestFirst;
+    @Option(names = { "--dedup" }, description = "index contents shared by many files only once")
+    boolean dedup;
+    @Option(names = { "--archive-dedup" }, description = "reuse the index of archives with the same contents of one already indexed, instead of decompressing them (implies --dedup)")
+    boolean archiveDedup;
+    @Option(names = { "--shards" }, paramLabel = "SHARDS", defaultValue = "0", description = "number of shards of a new index, writing and searching them in parallel (0 keeps the existing number, or 1 for a new index)")
+    int shards;
+    @Option(names = { "--hash-lines" }, description = "index hashes of lines instead of lines, making a new index smaller (refused on an existing index of another format)")
+    boolean hashLines;
+    @Option(names = { "--minhash" }, description = "also index a MinHash signature of each file of a new index, so that searches by content only look for near-duplicate files (refused on an existing index of another format)")
+    boolean minHash;
+    @Option(names = { "-w", "--watch" }, description = "keep running after indexing, and index changed files as they change")
+    boolean watch;
+    @Option(names = { "--reconcile-interval" }, paramLabel = "HOURS", defaultValue = "24", description = "with --watch, hours between walks of the whole directory, to catch any change missed")
+    int reconcileIntervalHours;
     @Parameters(index = "0", paramLabel = "SOURCE_PATH", description = "directory to index")
     Path sourcePath;
     @Parameters(index = "1", paramLabel = "INDEX_PATH", description = "directory where to create the index")
@@ -23,14 +49,141 @@ public class Index implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
-        index(sourcePath, indexPath, recursionLimit, followSymlinks);
+        var options = new Options()
+                .shards(shards)
+                .recursionLimit(recursionLimit)
+                .followSymlinks(followSymlinks)
+                .fanOutBudgetMB(fanOutBudgetMB)
+                .largestFirst(largestFirst)
+                .dedup(dedup)
+                .archiveDedup(archiveDedup)
+                .hashLines(hashLines)
+                .minHash(minHash);
+        if (watch) {
+            watch(sourcePath, indexPath, options, Duration.ofHours(reconcileIntervalHours));
+            return 0;
+        }
+        index(sourcePath, indexPath, options);
         return 0;
     }
 
+    /** Options of indexing, see the command line options for their meaning. Defaults are the same */
+    public static class Options {
+        private int shards;
+        private int recursionLimit = 2;
+        private boolean followSymlinks;
+        private int fanOutBudgetMB;
+        private boolean largestFirst;
+        private boolean dedup;
+        private boolean archiveDedup;
+        private boolean hashLines;
+        private boolean minHash;
+
+        public Options shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        public Options recursionLimit(int recursionLimit) {
+            this.recursionLimit = recursionLimit;
+            return this;
+        }
+
+        public Options followSymlinks(boolean followSymlinks) {
+            this.followSymlinks = followSymlinks;
+            return this;
+        }
+
+        public Options fanOutBudgetMB(int fanOutBudgetMB) {
+            this.fanOutBudgetMB = fanOutBudgetMB;
+            return this;
+        }
+
+        public Options largestFirst(boolean largestFirst) {
+            this.largestFirst = largestFirst;
+            return this;
+        }
+
+        public Options dedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
+        public Options archiveDedup(boolean archiveDedup) {
+            this.archiveDedup = archiveDedup;
+            return this;
+        }
+
+        public Options hashLines(boolean hashLines) {
+            this.hashLines = hashLines;
+            return this;
+        }
+
+        public Options minHash(boolean minHash) {
+            this.minHash = minHash;
+            return this;
+        }
+
+        /** Opens the index for writing with these options */
+        private IndexWriter writer(Path indexPath, boolean prune) throws IOException {
+            return new IndexWriter(indexPath, new IndexWriter.Options()
+                    .shards(shards)
+                    // copied archives refer to contents of the original ones, which requires contents to be deduplicated
+                    .dedup(dedup || archiveDedup)
+                    .prune(prune)
+                    .hashLines(hashLines)
+                    .minHash(minHash));
+        }
+
+        /** Options of directory indexers with these options */
+        private DirectoryIndexer.Options indexer() {
+            return new DirectoryIndexer.Options()
+                    .recursionLimit(recursionLimit)
+                    .followSymlinks(followSymlinks)
+                    .fanOutBudgetMB(fanOutBudgetMB)
+                    .largestFirst(largestFirst)
+                    .archiveDedup(archiveDedup);
+        }
+    }
+
     public static void index(Path sourcePath, Path indexPath, int recursionLimit, boolean followSymlinks) throws Exception {
+        index(sourcePath, indexPath, new Options().recursionLimit(recursionLimit).followSymlinks(followSymlinks));
+    }
+
+    public static void index(Path sourcePath, Path indexPath, Options options) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tF %1$tT] [%4$s] %5$s %n");
+        try (var writer = options.writer(indexPath, true)) {
+            new DirectoryIndexer(List.of(sourcePath), options.indexer(), writer).index();
+        }
+    }
+
+    /**
+     * Indexes the source directory, then keeps indexing changed files in small batches, committing after each one.
+     * The whole directory is indexed again every reconcileInterval, and when the watcher misses changes.
+     */
+    public static void watch(Path sourcePath, Path indexPath, Options options, Duration reconcileInterval) throws Exception {
         System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tF %1$tT] [%4$s] %5$s %n");
-        try (var writer = new IndexWriter(indexPath)) {
-            new DirectoryIndexer(sourcePath, recursionLimit, followSymlinks, writer).index();
+        // start watching first, so that no change during the first walk is missed
+        try (var watcher = new DirectoryWatcher(sourcePath, options.followSymlinks)) {
+            while (true) {
+                index(sourcePath, indexPath, options);
+
+                // the writer does not prune, as changes are only known for changed files
+                try (var writer = options.writer(indexPath, false)) {
+                    var complete = watcher.watch(Instant.now().plus(reconcileInterval), paths -> {
+                        LOG.info("Indexing changed paths: " + paths.size());
+                        // remove any previous version, including deleted files
+                        for (var path : paths) {
+                            writer.delete(path.toString());
+                        }
+                        new DirectoryIndexer(paths, options.indexer().largestFirst(false), writer).index();
+                        writer.commit();
+                    });
+                    if (!complete) {
+                        LOG.warning("Too many changes at once, some were missed: indexing the whole directory again");
+                    }
+                }
+            }
         }
     }
 }
@@ -21,6 +21,12 @@ public class Search implements Callable<Integer> {
     @Option(names = { "-e", "--explain" }, paramLabel = "EXPLAIN", defaultValue = "false", description = "Log debug information about scores")
     boolean explain;
 
+    @Option(names = { "-t", "--search-threads" }, paramLabel = "THREADS", defaultValue = "0", description = "threads searching index segments in parallel (0 is one per shard)")
+    int searchThreads;
+
+    @Option(names = { "--common-line-ratio" }, paramLabel = "RATIO", defaultValue = "0", description = "leave out lines in at least RATIO of the indexed files from queries, to search faster (0 keeps all lines, minimum 0.1)")
+    double commonLineRatio;
+
     @ArgGroup(exclusive = true, multiplicity = "0..1")
     SearchMode mode;
 
@@ -28,6 +34,9 @@ public class Search implements Callable<Integer> {
         @Option(names = { "-c", "--by-content" }, paramLabel = "BY_CONTENT", defaultValue = "false", description = "Search for files similar to the patch itself, rather than files where the patch can be applied")
         boolean byContent;
 
+        @Option(names = { "-x", "--exact" }, paramLabel = "EXACT", defaultValue = "false", description = "Search for files with exactly the same lines as the patch itself, or similar files if there are none")
+        boolean exact;
+
         @Option(names = { "-a", "--applied-patch" }, paramLabel = "APPLIED", defaultValue = "false", description = "Search for files matching the applied patch")
         boolean appliedPatch;
     }
@@ -41,23 +50,74 @@ public class Search implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
-        boolean byContent = false;
-        boolean appliedPatch = false;
+        var options = new Options()
+                .explain(explain)
+                .searchThreads(searchThreads)
+                .commonLineRatio(commonLineRatio);
         if (mode != null) {
-            byContent = mode.byContent;
-            appliedPatch = mode.appliedPatch;
+            options.byContent(mode.byContent)
+                    .exact(mode.exact)
+                    .appliedPatch(mode.appliedPatch);
         }
-        printResults(search(indexPath, patchPath, explain, byContent, appliedPatch));
+        printResults(search(indexPath, patchPath, options));
         return 0;
     }
 
+    /** Options of searches, see the command line options for their meaning. Defaults are the same */
+    public static class Options {
+        private boolean explain;
+        private int searchThreads;
+        private double commonLineRatio;
+        private boolean byContent;
+        private boolean exact;
+        private boolean appliedPatch;
+
+        public Options explain(boolean explain) {
+            this.explain = explain;
+            return this;
+        }
+
+        public Options searchThreads(int searchThreads) {
+            this.searchThreads = searchThreads;
+            return this;
+        }
+
+        public Options commonLineRatio(double commonLineRatio) {
+            this.commonLineRatio = commonLineRatio;
+            return this;
+        }
+
+        public Options byContent(boolean byContent) {
+            this.byContent = byContent;
+            return this;
+        }
+
+        public Options exact(boolean exact) {
+            this.exact = exact;
+            return this;
+        }
+
+        public Options appliedPatch(boolean appliedPatch) {
+            this.appliedPatch = appliedPatch;
+            return this;
+        }
+    }
+
     public static Map<String, List<QueryResult>> search(Path indexPath, Path patchPath, boolean explain, boolean byContent, boolean appliedPatch) throws Exception {
+        return search(indexPath, patchPath, new Options().explain(explain).byContent(byContent).appliedPatch(appliedPatch));
+    }
+
+    public static Map<String, List<QueryResult>> search(Path indexPath, Path patchPath, Options options) throws Exception {
         var pathString = patchPath.toString();
-        try (var searcher = new IndexSearcher(indexPath, explain); var fis = new FileInputStream(pathString)) {
-            if (byContent) {
+        try (var searcher = new IndexSearcher(indexPath, options.explain, options.searchThreads); var fis = new FileInputStream(pathString)) {
+            searcher.setCommonLineRatio(options.commonLineRatio);
+            if (options.exact) {
+                return Map.of(pathString, searcher.searchExact(buildByContentQuery(fis)));
+            }
+            else if (options.byContent) {
                 return Map.of(pathString, searcher.search(buildByContentQuery(fis)));
             }
-            else if (appliedPatch) {
+            else if (options.appliedPatch) {
                 return searcher.search(buildAppliedPatchQuery(fis));
             } else {
                 return searcher.search(buildUnappliedPatchQuery(fis));
@@ -5,55 +5,165 @@ import static java.lang.Boolean.parseBoolean;
 import static picocli.CommandLine.Option;
 import static spark.Spark.awaitInitialization;
 import static spark.Spark.exception;
+import static spark.Spark.get;
+import static spark.Spark.halt;
 import static spark.Spark.port;
 import static spark.Spark.post;
 import static spark.Spark.staticFileLocation;
 
 import com.github.difflib.unifieddiff.UnifiedDiffParserException;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import com.suse.pase.index.IndexSearcher;
+import com.suse.pase.index.SearchCache;
+import com.suse.pase.query.PatchQuery;
+import com.suse.pase.query.QueryResult;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
 
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Parameters;
+import spark.Request;
+import spark.Response;
 
 @Command(name = "serve", description = "Serves the Web interface for searching")
 public class Serve implements Callable<Integer> {
+    private static Logger LOG = Logger.getLogger(Serve.class.getName());
+    private static final Type BATCH_TYPE = new TypeToken<LinkedHashMap<String, String>>() {}.getType();
+    private static final Type RESULTS_TYPE = new TypeToken<List<QueryResult>>() {}.getType();
+    private static final String NDJSON = "application/x-ndjson";
+
     @Option(names = { "-p", "--port" }, paramLabel = "PORT", defaultValue = "4567", description = "TCP port to serve from")
     int port;
+    @Option(names = { "-t", "--search-threads" }, paramLabel = "THREADS", defaultValue = "0", description = "threads searching index segments in parallel (0 is one per shard)")
+    int searchThreads;
+    @Option(names = { "--query-threads" }, paramLabel = "THREADS", defaultValue = "0", description = "threads searching files of patches in parallel, shared by all requests (0 is one per CPU)")
+    int queryThreads;
+    @Option(names = { "--queries-per-request" }, paramLabel = "QUERIES", defaultValue = "4", description = "maximum number of files of one patch searched in parallel (0 is all query threads)")
+    int queriesPerRequest;
+    @Option(names = { "--cache-size" }, paramLabel = "RESULTS", defaultValue = "100000", description = "maximum number of search results to cache (0 disables caching)")
+    long cacheSize;
+    @Option(names = { "--refresh-interval" }, paramLabel = "SECONDS", defaultValue = "60", description = "seconds between checks for new index commits to switch to (0 disables)")
+    int refreshIntervalSeconds;
+    @Option(names = { "--preload" }, paramLabel = "EXTENSIONS", split = ",", description = "extensions of index files to read on warm-up, so that they are cached (e.g. tim,doc,pos)")
+    Set<String> preloadExtensions = Set.of();
+    @Option(names = { "--warmup-patches" }, paramLabel = "PATH", split = ",", description = "patch files, or directories of patch files, to search on warm-up")
+    List<Path> warmupPatchPaths = List.of();
+    @Option(names = { "--common-line-ratio" }, paramLabel = "RATIO", defaultValue = "0", description = "leave out lines in at least RATIO of the indexed files from queries, to search faster (0 keeps all lines, minimum 0.1)")
+    double commonLineRatio;
     @Parameters(index = "0", paramLabel = "INDEX_PATH", description = "directory with a pase index")
     Path indexPath;
 
     @Override
     public Integer call() throws Exception {
-        serve(port, indexPath);
+        serve(port, indexPath, searchThreads, queryThreads, queriesPerRequest, cacheSize, refreshIntervalSeconds, preloadExtensions, warmupPatchPaths, commonLineRatio);
         return 0;
     }
 
-    public static void serve(int port, Path indexPath) throws Exception {
+    public static void serve(int port, Path indexPath, int searchThreads, int queryThreads, int queriesPerRequest, long cacheSize, int refreshIntervalSeconds, Set<String> preloadExtensions, List<Path> warmupPatchPaths, double commonLineRatio) throws Exception {
         Gson gson = new Gson();
-        try (var searcher = new IndexSearcher(indexPath, false)) {
+        var ready = new AtomicBoolean();
+        try (var searcher = new IndexSearcher(indexPath, false, searchThreads, queryThreads, queriesPerRequest)) {
+            searcher.setCommonLineRatio(commonLineRatio);
+            var cache = new SearchCache(cacheSize);
+            if (refreshIntervalSeconds > 0) {
+                scheduleRefresh(searcher, refreshIntervalSeconds);
+            }
             port(port);
             staticFileLocation("/htdocs");
             post("/search", (req, res) -> {
                 // HACK: for testing purposes, allow Javascript from any site to send requests
                 res.header("Access-Control-Allow-Origin", "*");
+                // results of patches are JSON or newline-delimited JSON, depending on Accept
+                res.header("Vary", "Accept");
 
                 var patch = req.body();
                 var inputStream = new ByteArrayInputStream(patch.getBytes(StandardCharsets.UTF_8));
 
-                if (parseBoolean(req.queryParamOrDefault("by_content", "false"))) {
-                    return searcher.search(buildByContentQuery(inputStream));
-                } else if (parseBoolean(req.queryParamOrDefault("applied_patch", "false"))) {
-                    return searcher.search(buildAppliedPatchQuery(inputStream));
+                // results are cached, and tagged for HTTP caches, by query and version of the index searched
+                try (var view = searcher.acquireView()) {
+                    if (parseBoolean(req.queryParamOrDefault("exact", "false"))) {
+                        var query = buildByContentQuery(inputStream);
+                        var key = cache.key(view, "exact", query);
+                        checkETag(req, res, key);
+                        return cache.searchExact(view, key, query);
+                    }
+                    else if (parseBoolean(req.queryParamOrDefault("by_content", "false"))) {
+                        var query = buildByContentQuery(inputStream);
+                        var key = cache.key(view, "by_content", query);
+                        checkETag(req, res, key);
+                        return cache.search(view, key, query);
+                    } else {
+                        var applied = parseBoolean(req.queryParamOrDefault("applied_patch", "false"));
+                        var targets = applied ? buildAppliedPatchQuery(inputStream) : buildUnappliedPatchQuery(inputStream);
+                        var key = cache.key(view, applied ? "applied_patch" : "unapplied_patch", targets);
+                        var streaming = isStreaming(req);
+                        // the same results, in another representation, have another entity tag
+                        checkETag(req, res, streaming ? key + "-ndjson" : key);
+                        if (streaming) {
+                            streamResults(gson, res, consumer -> cache.search(view, key, targets, consumer));
+                            // the body was written already
+                            return "";
+                        }
+                        return cache.search(view, key, targets);
+                    }
+                }
+            }, model -> model instanceof String ? (String) model : gson.toJson(model));
+
+            // searches many patches at once, sent as a JSON object from patch name to patch text
+            post("/search/batch", (req, res) -> {
+                res.header("Access-Control-Allow-Origin", "*");
+                res.type("application/json");
+
+                Map<String, String> patches = gson.fromJson(req.body(), BATCH_TYPE);
+                if (patches == null || patches.containsValue(null)) {
+                    halt(400, "Expected a JSON object from patch name to patch text");
                 }
-                else {
-                    return searcher.search(buildUnappliedPatchQuery(inputStream));
+                var applied = parseBoolean(req.queryParamOrDefault("applied_patch", "false"));
+                var targets = new LinkedHashMap<String, List<PatchQuery>>();
+                for (var patch : patches.entrySet()) {
+                    var inputStream = new ByteArrayInputStream(patch.getValue().getBytes(StandardCharsets.UTF_8));
+                    targets.put(patch.getKey(), applied ? buildAppliedPatchQuery(inputStream) : buildUnappliedPatchQuery(inputStream));
                 }
+                try (var view = searcher.acquireView()) {
+                    return cache.search(view, applied ? "applied_patch" : "unapplied_patch", targets);
+                }
+            }, gson::toJson);
+
+            // load balancers should send requests only after warm-up
+            get("/ready", (req, res) -> {
+                if (!ready.get()) {
+                    res.status(503);
+                    return "warming up";
+                }
+                return "ready";
+            });
+
+            get("/stats", (req, res) -> {
+                res.type("application/json");
+                return Map.of("search_executor", searcher.getExecutorStats(),
+                        "query_executor", searcher.getQueryExecutorStats(),
+                        "result_cache", cache.getStats());
             }, gson::toJson);
 
             exception(UnifiedDiffParserException.class, (exception, request, response) -> {
@@ -61,12 +171,20 @@ public class Serve implements Callable<Integer> {
                 response.body("Unable to parse the patch");
             });
 
+            exception(JsonParseException.class, (exception, request, response) -> {
+                response.status(400);
+                response.body("Unable to parse the batch: " + exception.getMessage());
+            });
+
             exception(Exception.class, (exception, request, response) -> {
                 exception.printStackTrace();
                 throw new RuntimeException(exception);
             });
 
             awaitInitialization();
+
+            searcher.warmUp(preloadExtensions, readSamplePatches(warmupPatchPaths));
+            ready.set(true);
             System.out.println("Access the Web UI at http://localhost:" + port);
 
             // Spark by default runs in separate daemon threads, but we do not
@@ -77,4 +195,112 @@ public class Serve implements Callable<Integer> {
             }
         }
     }
+
+    /** Parses patches to search on warm-up, from patch files or directories of patch files */
+    private static List<List<PatchQuery>> readSamplePatches(List<Path> paths) throws IOException {
+        var files = new ArrayList<Path>();
+        for (var path : paths) {
+            if (Files.isDirectory(path)) {
+                try (var children = Files.list(path)) {
+                    children.filter(Files::isRegularFile).sorted().forEach(files::add);
+                }
+            }
+            else {
+                files.add(path);
+            }
+        }
+
+        var patches = new ArrayList<List<PatchQuery>>();
+        for (var file : files) {
+            try (var stream = Files.newInputStream(file)) {
+                patches.add(buildUnappliedPatchQuery(stream));
+            }
+            catch (IOException | UnifiedDiffParserException e) {
+                LOG.warning("Could not parse warm-up patch, skipping: " + file);
+            }
+        }
+        return patches;
+    }
+
+    /** Switches the searcher to new index commits, if any, periodically in the background */
+    private static void scheduleRefresh(IndexSearcher searcher, int intervalSeconds) {
+        var scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "index-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                searcher.maybeRefresh();
+            }
+            catch (IOException | RuntimeException e) {
+                LOG.warning("Could not open new index commit, still serving the previous one: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Returns true if the client asked for results of each file as soon as they are available */
+    private static boolean isStreaming(Request req) {
+        var accept = req.headers("Accept");
+        return parseBoolean(req.queryParamOrDefault("stream", "false")) || (accept != null && accept.contains(NDJSON));
+    }
+
+    /**
+     * Writes results as newline-delimited JSON, one {"path": ..., "results": [...]} object per file, flushing each
+     * line as soon as the search of its file ends. If the search fails, the last line is an {"error": ...} object,
+     * since the status was sent already.
+     */
+    private static void streamResults(Gson gson, Response res, Consumer<BiConsumer<String, List<QueryResult>>> search) throws IOException {
+        res.type(NDJSON);
+        var writer = new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8);
+        var jsonWriter = gson.newJsonWriter(writer);
+        // one top-level value per line
+        jsonWriter.setLenient(true);
+        try {
+            search.accept((path, results) -> {
+                try {
+                    jsonWriter.beginObject();
+                    jsonWriter.name("path").value(path);
+                    jsonWriter.name("results");
+                    gson.toJson(results, RESULTS_TYPE, jsonWriter);
+                    jsonWriter.endObject();
+                    writer.write('\n');
+                    jsonWriter.flush();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            // the client went away, nobody reads an error line
+            throw e.getCause();
+        }
+        catch (RuntimeException e) {
+            LOG.warning("Search failed while streaming results: " + e);
+            jsonWriter.beginObject();
+            jsonWriter.name("error").value("Search failed, results are incomplete");
+            jsonWriter.endObject();
+            writer.write('\n');
+        }
+        jsonWriter.flush();
+    }
+
+    /** Sets the ETag of a response, and stops with 304 Not Modified if the client has the same entity already */
+    private static void checkETag(Request req, Response res, String key) {
+        var etag = "\"" + key + "\"";
+        res.header("ETag", etag);
+        var ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (var tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    halt(304);
+                }
+            }
+        }
+    }
 }
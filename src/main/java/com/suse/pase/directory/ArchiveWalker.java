@@ -3,6 +3,9 @@ package com.suse.pase.directory;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
@@ -12,10 +15,10 @@ import org.eclipse.packagedrone.utils.rpm.parse.RpmInputStream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
-import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 /** Walks an archive, allowing a consumer to read any file inside of it */
@@ -24,7 +27,9 @@ public class ArchiveWalker {
     private static final List<String> TAR_BZIP2_EXTENSIONS = List.of(".tar.bz2", ".tb2", ".tbz", ".tbz2", ".tz2");
     private static final List<String> TAR_GZIP_EXTENSIONS = List.of(".tar.gz", ".taz", ".tgz");
 
-    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    /** Header tag of the RPM payload digest, not defined by RpmTag */
+    private static final int RPMTAG_PAYLOADDIGEST = 5092;
+
     private static Logger LOG = Logger.getLogger(ArchiveWalker.class.getName());
 
     private final Path path;
@@ -35,16 +40,103 @@ public class ArchiveWalker {
         this.stream = stream;
     }
 
-    /** Calls the consumer for all files in the archive. The consumer receives each file's path and a stream of its bytes. */
-    public void walkArchiveFiles(BiConsumer<Path, BufferedInputStream> consumer) {
+    /** Receives files found in an archive */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        /** Called for each file, with its path, its size in bytes (or -1 if unknown) and a stream of its bytes */
+        void accept(Path path, long size, BufferedInputStream stream);
+    }
+
+    /**
+     * Returns a rough estimate of the cost of processing one byte of the file at path, relative to reading one byte
+     * of a plain file. Reflects how expensive decompressing each archive format is.
+     */
+    public static double decompressionCost(Path path) {
+        var name = path.toString();
+        if (name.endsWith(".tar.xz")) {
+            return 8;
+        }
+        if (name.endsWith(".rpm") || TAR_BZIP2_EXTENSIONS.stream().anyMatch(name::endsWith)) {
+            return 6;
+        }
+        if (name.endsWith(".zip") || TAR_GZIP_EXTENSIONS.stream().anyMatch(name::endsWith)) {
+            return 3;
+        }
+        if (name.endsWith(".obscpio")) {
+            return 1.5;
+        }
+        return 1;
+    }
+
+    /** Returns true if the file at path is an archive this walker can open, judging by its name */
+    public static boolean isArchive(Path path) {
+        var name = path.toString();
+        return name.endsWith(".rpm") || name.endsWith(".tar.xz") || name.endsWith(".zip") || name.endsWith(".obscpio") ||
+                TAR_BZIP2_EXTENSIONS.stream().anyMatch(name::endsWith) || TAR_GZIP_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    /**
+     * Returns a string identifying the contents of the archive at path, regardless of its name and metadata, if its
+     * header has one. That is the payload digest of RPMs, only the header is read.
+     */
+    public static Optional<String> headerIdentity(Path path) throws IOException {
+        if (path.toString().endsWith(".rpm")) {
+            try (var rpmStream = new RpmInputStream(Files.newInputStream(path))) {
+                var digest = rpmStream.getPayloadHeader().getOptionalTag(RPMTAG_PAYLOADDIGEST);
+                if (digest.isPresent() && digest.get() instanceof String[] && ((String[]) digest.get()).length > 0) {
+                    return of("rpm-payload:" + ((String[]) digest.get())[0]);
+                }
+            }
+            // older RPMs have no payload digest
+        }
+        return empty();
+    }
+
+    /**
+     * Returns a string identifying the contents of the archive at path, regardless of its name and metadata.
+     * That is the header identity if there is one, or the identity of all bytes otherwise.
+     */
+    public static String identity(Path path) throws IOException {
+        var headerIdentity = headerIdentity(path);
+        if (headerIdentity.isPresent()) {
+            return headerIdentity.get();
+        }
+
+        var hasher = Hashing.sha256().newHasher();
+        var buffer = BufferPool.acquire(Files.size(path));
+        try (var stream = Files.newInputStream(path)) {
+            int count;
+            while ((count = stream.read(buffer)) > 0) {
+                hasher.putBytes(buffer, 0, count);
+            }
+        }
+        finally {
+            BufferPool.release(buffer);
+        }
+        return identity(hasher.hash());
+    }
+
+    /** Returns a string identifying the contents of an archive without header identity, given the SHA-256 of its bytes */
+    public static String identity(HashCode sha256) {
+        return "sha256:" + sha256;
+    }
+
+    /** Calls the consumer for all files in the archive. The consumer receives each file's path, size and a stream of its bytes. */
+    public void walkArchiveFiles(EntryConsumer consumer) {
         getArchiveInputStream().ifPresent(ais -> {
                 try {
                     ArchiveEntry entry;
                     while ((entry = ais.getNextEntry()) != null) {
                         if (!entry.isDirectory()) {
                             var path = this.path.resolve(entry.getName());
-                            var stream = new BufferedInputStream(ais, BUFFER_SIZE);
-                            consumer.accept(path, stream);
+                            var stream = new PooledBufferedInputStream(ais, entry.getSize());
+                            try {
+                                consumer.accept(path, entry.getSize(), stream);
+                            }
+                            finally {
+                                // do not close the stream, that would close the archive
+                                stream.release();
+                            }
                         }
                     }
                 }
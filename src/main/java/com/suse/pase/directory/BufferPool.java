@@ -0,0 +1,65 @@
+package com.suse.pase.directory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-thread pool of read buffers, so that reading many files does not allocate a new large buffer for each of them.
+ *
+ * Buffers are sized in powers of two between MIN_SIZE and MAX_SIZE, according to the size of the file to read when
+ * known. Each thread keeps up to MAX_IDLE_BYTES of idle buffers.
+ */
+class BufferPool {
+    static final int MIN_SIZE = 8 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAX_IDLE_BYTES = 16 * 1024 * 1024;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+
+    /** Idle buffers by size class */
+    private final List<ArrayDeque<byte[]>> idle = new ArrayList<>(SIZE_CLASSES);
+    private int idleBytes;
+
+    private BufferPool() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            idle.add(new ArrayDeque<>());
+        }
+    }
+
+    /** Returns a buffer fit to read sizeHint bytes (or MAX_SIZE if sizeHint is negative, meaning unknown) */
+    static byte[] acquire(long sizeHint) {
+        var size = sizeHint < 0 || sizeHint >= MAX_SIZE ? MAX_SIZE : Math.max(MIN_SIZE, nextPowerOfTwo((int) sizeHint));
+        var pool = POOLS.get();
+        var buffer = pool.idle.get(sizeClass(size)).poll();
+        if (buffer == null) {
+            return new byte[size];
+        }
+        pool.idleBytes -= buffer.length;
+        return buffer;
+    }
+
+    /** Gives a buffer back to the current thread's pool. The caller must not use it afterwards. */
+    static void release(byte[] buffer) {
+        var size = buffer.length;
+        if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1) {
+            // not from the pool, let it be garbage collected
+            return;
+        }
+        var pool = POOLS.get();
+        if (pool.idleBytes + size <= MAX_IDLE_BYTES) {
+            pool.idle.get(sizeClass(size)).push(buffer);
+            pool.idleBytes += size;
+        }
+    }
+
+    private static int sizeClass(int size) {
+        return Integer.numberOfTrailingZeros(size / MIN_SIZE);
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
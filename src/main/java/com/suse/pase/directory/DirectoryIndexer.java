@@ -7,14 +7,24 @@ import static java.util.Optional.of;
 import com.google.common.base.Stopwatch;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
 import com.suse.pase.index.IndexWriter;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFileAttributes;
-import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -25,20 +35,80 @@ import java.util.logging.Logger;
  */
 public class DirectoryIndexer {
     private static Logger LOG = Logger.getLogger(DirectoryIndexer.class.getName());
-    private final Path root;
+    private static final ThreadLocal<byte[]> TEXT_CHECK_BUFFER = ThreadLocal.withInitial(() -> new byte[4096]);
     private final int recursionLimit;
     private final boolean followSymlinks;
     private final IndexWriter index;
+    private DirectoryWalker walker;
+    /** Bytes of archive entries that can be held in memory waiting for a worker thread, null if fan out is disabled */
+    private final Semaphore fanOutBudget;
+    private final boolean archiveDedup;
+    /** Sizes of archives indexed in this run, as only archives of the same size can have the same contents */
+    private final Set<Long> archiveSizes = ConcurrentHashMap.newKeySet();
+    /** Archives that might have the same contents of others indexed in this run, to copy once those are indexed */
+    private final Queue<Path> deferredArchives = new ConcurrentLinkedQueue<>();
+    private boolean deferArchives = true;
     private final AtomicInteger processedFiles = new AtomicInteger();
     private final AtomicInteger processedFilesInArchives = new AtomicInteger();
     private final AtomicInteger updatedFiles = new AtomicInteger();
     private final AtomicInteger updatedFilesInArchives = new AtomicInteger();
 
     public DirectoryIndexer(Path path, int recursionLimit, boolean followSymlinks, IndexWriter index) {
-        this.root = path;
-        this.recursionLimit = recursionLimit;
-        this.followSymlinks = followSymlinks;
+        this(List.of(path), new Options().recursionLimit(recursionLimit).followSymlinks(followSymlinks), index);
+    }
+
+    /** Options of a directory indexer. Defaults are the same of the command line */
+    public static class Options {
+        private int recursionLimit = 2;
+        private boolean followSymlinks;
+        private int fanOutBudgetMB;
+        private boolean largestFirst;
+        private boolean archiveDedup;
+
+        /** Maximum level of nested archives to index */
+        public Options recursionLimit(int recursionLimit) {
+            this.recursionLimit = recursionLimit;
+            return this;
+        }
+
+        public Options followSymlinks(boolean followSymlinks) {
+            this.followSymlinks = followSymlinks;
+            return this;
+        }
+
+        /**
+         * If greater than zero, files in archives are indexed by all worker threads while the archive is
+         * decompressed, keeping at most this many MiB of them in memory at any time
+         */
+        public Options fanOutBudgetMB(int fanOutBudgetMB) {
+            this.fanOutBudgetMB = fanOutBudgetMB;
+            return this;
+        }
+
+        /** If true, files are indexed starting from the most expensive ones */
+        public Options largestFirst(boolean largestFirst) {
+            this.largestFirst = largestFirst;
+            return this;
+        }
+
+        /**
+         * If true, archives with the same contents of one already indexed are not decompressed, documents of their
+         * files are copied instead. Only effective if the index deduplicates contents
+         */
+        public Options archiveDedup(boolean archiveDedup) {
+            this.archiveDedup = archiveDedup;
+            return this;
+        }
+    }
+
+    /** @param paths directories or files to index */
+    public DirectoryIndexer(List<Path> paths, Options options, IndexWriter index) {
+        this.recursionLimit = options.recursionLimit;
+        this.followSymlinks = options.followSymlinks;
         this.index = index;
+        this.walker = new DirectoryWalker(paths, options.followSymlinks, options.largestFirst);
+        this.fanOutBudget = options.fanOutBudgetMB > 0 ? new Semaphore((int) Math.min(options.fanOutBudgetMB * 1024L * 1024L, Integer.MAX_VALUE)) : null;
+        this.archiveDedup = options.archiveDedup;
     }
 
     /**
@@ -47,8 +117,38 @@ public class DirectoryIndexer {
      */
     public void index() {
         Stopwatch timer = Stopwatch.createStarted();
-        new DirectoryWalker(root, this.followSymlinks).walkFiles((path, stream) -> {
-            var fingerprint = fingerprint(path);
+        walk();
+        if (!deferredArchives.isEmpty()) {
+            // archives with the same contents of others in this run can be copied now that those are indexed
+            try {
+                index.refreshArchives();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            deferArchives = false;
+            walker = new DirectoryWalker(List.copyOf(deferredArchives), followSymlinks, false);
+            walk();
+        }
+
+        LOG.info("Indexing completed!");
+        LOG.info("Total processed files: " + processedFiles.get());
+        LOG.info("  - of which in archives: " + processedFilesInArchives.get());
+        LOG.info("Updated files in the index: " + updatedFiles.get());
+        LOG.info("  - of which in archives: " + updatedFilesInArchives.get());
+        LOG.info("Indexing time: " + timer.stop());
+    }
+
+    private void walk() {
+        walker.walkFiles((path, attrs) -> {
+            // skip unchanged files before opening them
+            var fingerprint = fingerprint(path, attrs);
+            if (index.refresh(fingerprint)) {
+                logProcessedFile(false, false);
+                return empty();
+            }
+            return of(fingerprint);
+        }, (path, fingerprint, stream) -> {
             if (isText(path, stream)) {
                 if (index.add(path.toString(), fingerprint, of(stream))) {
                     logProcessedFile(false, true);
@@ -59,7 +159,10 @@ public class DirectoryIndexer {
             }
             else {
                 if (recursionLimit >=1) {
-                    if (index.add(path.toString(), fingerprint, empty())) {
+                    if (archiveDedup && ArchiveWalker.isArchive(path)) {
+                        indexArchiveByIdentity(path, fingerprint, stream);
+                    }
+                    else if (index.add(path.toString(), fingerprint, empty())) {
                         indexArchive(path, fingerprint, stream, recursionLimit);
                         logProcessedFile(false, true);
                     }
@@ -72,33 +175,132 @@ public class DirectoryIndexer {
                 }
             }
         });
-        var endTime = System.currentTimeMillis();
+    }
 
-        LOG.info("Indexing completed!");
-        LOG.info("Total processed files: " + processedFiles.get());
-        LOG.info("  - of which in archives: " + processedFilesInArchives.get());
-        LOG.info("Updated files in the index: " + updatedFiles.get());
-        LOG.info("  - of which in archives: " + updatedFilesInArchives.get());
-        LOG.info("Indexing time: " + timer.stop());
+    /**
+     * Indexes an archive, reusing documents of an archive with the same contents if already in the index.
+     *
+     * Archives are identified by their header if possible (e.g. RPMs). Otherwise they are hashed before being
+     * decompressed only if an archive of the same size is indexed, as they cannot be a copy of any other. If not,
+     * their bytes are hashed while they are decompressed.
+     *
+     * Archives of the same size of one indexed earlier in the same run are left for a second walk, when the documents
+     * of that one can be copied.
+     */
+    private void indexArchiveByIdentity(Path path, String fingerprint, BufferedInputStream stream) {
+        long size;
+        Optional<String> identity;
+        try {
+            size = Files.size(path);
+            identity = ArchiveWalker.headerIdentity(path);
+            if (identity.isEmpty() && index.hasArchiveOfSize(size)) {
+                identity = of(ArchiveWalker.identity(path));
+            }
+        }
+        catch (IOException e) {
+            LOG.warning("Could not read archive, skipping: " + path);
+            logProcessedFile(false, false);
+            return;
+        }
+
+        if (identity.isPresent() && index.copyArchive(path.toString(), fingerprint, identity.get(), size)) {
+            logProcessedFile(false, true);
+            return;
+        }
+
+        if (deferArchives && !archiveSizes.add(size)) {
+            // an archive of the same size is being indexed in this run, try to copy it once done
+            deferredArchives.add(path);
+            return;
+        }
+
+        if (identity.isPresent()) {
+            if (index.addArchive(path.toString(), fingerprint, identity.get(), size)) {
+                indexArchive(path, fingerprint, stream, recursionLimit);
+                logProcessedFile(false, true);
+            }
+            else {
+                logProcessedFile(false, false);
+            }
+            return;
+        }
+
+        var hashingStream = new HashingInputStream(Hashing.sha256(), stream);
+        indexArchive(path, fingerprint, hashingStream, recursionLimit);
+        try {
+            // hash any byte after the end of the archive too
+            ByteStreams.copy(hashingStream, ByteStreams.nullOutputStream());
+        }
+        catch (IOException e) {
+            LOG.warning("Could not read archive, skipping: " + path);
+            logProcessedFile(false, false);
+            return;
+        }
+        if (index.addArchive(path.toString(), fingerprint, ArchiveWalker.identity(hashingStream.hash()), size)) {
+            logProcessedFile(false, true);
+        }
+        else {
+            logProcessedFile(false, false);
+        }
     }
 
-    private void indexArchive(Path archivePath, String fingerprint, BufferedInputStream archiveStream, int recursionLevel) {
-        new ArchiveWalker(archivePath, archiveStream).walkArchiveFiles((path, stream) -> {
-            if (isText(path, stream)) {
-                if (index.add(path.toString(), fingerprint, of(stream))) {
-                    logProcessedFile(true, true);
-                }
-                else {
-                    logProcessedFile(true, false);
-                }
+    private void indexArchive(Path archivePath, String fingerprint, InputStream archiveStream, int recursionLevel) {
+        new ArchiveWalker(archivePath, archiveStream).walkArchiveFiles((path, size, stream) -> {
+            if (!fanOut(path, fingerprint, size, stream, recursionLevel)) {
+                indexArchiveEntry(path, fingerprint, stream, recursionLevel);
+            }
+        });
+    }
+
+    private void indexArchiveEntry(Path path, String fingerprint, BufferedInputStream stream, int recursionLevel) {
+        if (isText(path, stream)) {
+            if (index.add(path.toString(), fingerprint, of(stream))) {
+                logProcessedFile(true, true);
             }
             else {
-                if (recursionLevel > 1) {
-                    indexArchive(path, fingerprint, stream, recursionLevel - 1);
-                }
                 logProcessedFile(true, false);
             }
+        }
+        else {
+            if (recursionLevel > 1) {
+                indexArchive(path, fingerprint, stream, recursionLevel - 1);
+            }
+            logProcessedFile(true, false);
+        }
+    }
+
+    /**
+     * Reads an archive entry in memory and hands it over to the walker's worker threads, so that this thread can go on
+     * decompressing the rest of the archive.
+     * @return false if the entry could not be handed over (fan out disabled, unknown size or memory budget exhausted)
+     */
+    private boolean fanOut(Path path, String fingerprint, long size, BufferedInputStream stream, int recursionLevel) {
+        if (fanOutBudget == null || size < 0 || size > Integer.MAX_VALUE || !fanOutBudget.tryAcquire((int) size)) {
+            return false;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = stream.readNBytes((int) size);
+        }
+        catch (IOException e) {
+            fanOutBudget.release((int) size);
+            LOG.warning("Could not decompress entry from archive, skipping: " + path);
+            return true;
+        }
+
+        walker.fork(() -> {
+            try (var entryStream = new PooledBufferedInputStream(new ByteArrayInputStream(bytes), bytes.length)) {
+                indexArchiveEntry(path, fingerprint, entryStream, recursionLevel);
+            }
+            catch (IOException | RuntimeException e) {
+                LOG.warning("Could not process file, skipping: " + path + " (" + e + ")");
+            }
+            finally {
+                fanOutBudget.release((int) size);
+            }
         });
+        return true;
     }
 
     private void logProcessedFile(boolean inArchive, boolean updated) {
@@ -120,43 +322,30 @@ public class DirectoryIndexer {
         }
     }
 
-    /** Returns a string that changes when the file pointed by path changes */
-    private String fingerprint(Path path) {
+    /** Returns a string that changes when the file pointed by path changes, without opening the file */
+    private String fingerprint(Path path, BasicFileAttributes attributes) {
         // we assume contents changed based on filesystem metadata,
         // see rationale in https://apenwarr.ca/log/20181113
-        try {
-            Hasher hasher = Hashing.sha256().newHasher();
-            var attributes = Files.readAttributes(path, PosixFileAttributes.class);
-
-            // path
-            hasher.putString(path.toString(), UTF_8);
-            // mtime
-            hasher.putLong(attributes.lastModifiedTime().toMillis());
-            // size
-            hasher.putLong(attributes.size());
-            // inode
-            hasher.putString(attributes.fileKey().toString(), UTF_8);
-            // mode
-            for (var p : PosixFilePermission.values()){
-                hasher.putBoolean(attributes.permissions().contains(p));
-            }
-            // owner
-            hasher.putInt(attributes.owner().hashCode());
-            // owner group
-            hasher.putInt(attributes.group().hashCode());
-
-            return hasher.hash().toString();
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        // mode and owner are left out: they do not change contents, and would need another stat per file
+        Hasher hasher = Hashing.sha256().newHasher();
+
+        // path
+        hasher.putString(path.toString(), UTF_8);
+        // mtime
+        hasher.putLong(attributes.lastModifiedTime().toMillis());
+        // size
+        hasher.putLong(attributes.size());
+        // inode
+        hasher.putString(String.valueOf(attributes.fileKey()), UTF_8);
+
+        return hasher.hash().toString();
     }
 
     private boolean isText(Path path, BufferedInputStream stream) {
         // same heuristic used by diff
         // https://dev.to/sharkdp/what-is-a-binary-file-2cf5
 
-        byte[] buf = new byte[4096];
+        byte[] buf = TEXT_CHECK_BUFFER.get();
         stream.mark(buf.length);
         try {
             var count = stream.read(buf, 0, buf.length);
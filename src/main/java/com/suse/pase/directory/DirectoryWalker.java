@@ -1,72 +1,290 @@
 package com.suse.pase.directory;
 
-import static java.util.Optional.empty;
-
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.BiConsumer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 
-/** Walks a directory, recursively, with many threads. */
+/**
+ * Walks a directory, recursively, with many threads.
+ *
+ * Files are handed over to worker threads while the walk is still running. The number of files waiting for a worker
+ * is bounded, so the walk blocks when workers fall behind and memory usage does not depend on the size of the tree.
+ */
 public class DirectoryWalker {
 
-    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    /** Maximum number of tasks waiting for a worker, per worker thread */
+    private static final int QUEUED_TASKS_PER_THREAD = 16;
+    /**
+     * Rough time one thread takes per unit of estimated cost (one byte of a plain file), to predict the makespan of
+     * largest-first schedules. Measured indexing the test sources from a cold start, about 12 MB/s
+     */
+    private static final double NANOS_PER_COST = 80;
+
+    private static Logger LOG = Logger.getLogger(DirectoryWalker.class.getName());
 
-    private final Path path;
+    private final List<Path> paths;
     private final boolean followSymlinks;
-    private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final boolean largestFirst;
+    private final int threads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    private final Semaphore pendingTasks = new Semaphore(threads * (QUEUED_TASKS_PER_THREAD + 1));
+    /** Time spent by each worker thread on files and forked tasks */
+    private final Map<Thread, Long> busyNanos = new ConcurrentHashMap<>();
+    /** Makespan predicted by the largest-first schedule before consuming any file, if any */
+    private OptionalDouble predictedMakespanNanos = OptionalDouble.empty();
 
     public DirectoryWalker(Path path, boolean followSymlinks) {
-        this.path = path;
+        this(path, followSymlinks, false);
+    }
+
+    /**
+     * @param largestFirst if true, the whole tree is walked before any file is consumed, then files are consumed
+     *                     starting from the most expensive ones (by size and decompression cost). This shortens the
+     *                     total time when a few large files would otherwise start last
+     */
+    public DirectoryWalker(Path path, boolean followSymlinks, boolean largestFirst) {
+        this(List.of(path), followSymlinks, largestFirst);
+    }
+
+    /** Walks several directories or files, in the same way as one. Paths that do not exist are skipped. */
+    public DirectoryWalker(List<Path> paths, boolean followSymlinks, boolean largestFirst) {
+        this.paths = paths;
         this.followSymlinks = followSymlinks;
+        this.largestFirst = largestFirst;
+    }
+
+    /** Decides, before opening it, whether a file has to be consumed */
+    @FunctionalInterface
+    public interface FileFilter<T> {
+        /**
+         * Called with each file's path and attributes, before the file is opened.
+         * @return empty to skip the file, or a value to pass to the consumer along with the file's stream
+         */
+        Optional<T> filter(Path path, BasicFileAttributes attrs);
     }
 
-    /** Calls the consumer for all files in the directory. The consumer receives each file's path and a stream of its bytes. */
-    public void walkFiles(BiConsumer<Path, BufferedInputStream> consumer) {
+    /** Consumes files found by the walker */
+    @FunctionalInterface
+    public interface FileConsumer<T> {
+        /** Called with each file's path, the value returned by the filter and a stream of the file's bytes */
+        void accept(Path path, T value, BufferedInputStream stream);
+    }
+
+    /**
+     * Calls the filter, then the consumer, for all files in the directory. Files skipped by the filter are never
+     * opened. Returns when all files have been consumed.
+     */
+    public <T> void walkFiles(FileFilter<T> filter, FileConsumer<T> consumer) {
+        var start = System.nanoTime();
         try {
-            final List<Callable<Object>> todo = new LinkedList<>();
+            if (largestFirst) {
+                walkLargestFirst(filter, consumer, start);
+            }
+            else {
+                walk((path, attrs) -> submit(path, attrs.size(), () -> filter.filter(path, attrs), consumer));
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            shutdown();
+        }
+        logLoad(System.nanoTime() - start);
+    }
 
-            Set<FileVisitOption> fileVisitOptions = Collections.emptySet();
-            if (followSymlinks) {
-                fileVisitOptions = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+    /** Calls the visitor for all regular files in the directory, on the current thread. */
+    private void walk(FileVisitor visitor) throws IOException {
+        Set<FileVisitOption> fileVisitOptions = Collections.emptySet();
+        if (followSymlinks) {
+            fileVisitOptions = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        }
+        for (var path : paths) {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
             }
             Files.walkFileTree(path, fileVisitOptions, 200, new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
                     if (attrs.isRegularFile() && (followSymlinks || !attrs.isSymbolicLink())) {
-                        todo.add(() -> {
-                            try (var fileStream = Files.newInputStream(path);
-                                 var stream = new BufferedInputStream(fileStream, BUFFER_SIZE)) {
-                                consumer.accept(path, stream);
-                            }
-                            catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                            return empty();
-                        });
+                        visitor.visit(path, attrs);
                     }
                     return FileVisitResult.CONTINUE;
                 }
             });
+        }
+    }
+
+    /**
+     * Collects all files to consume with their estimated cost, then consumes them starting from the most expensive
+     * ones (Longest Processing Time first).
+     */
+    private <T> void walkLargestFirst(FileFilter<T> filter, FileConsumer<T> consumer, long start) throws IOException {
+        var files = new ArrayList<ScheduledFile<T>>();
+        walk((path, attrs) -> {
+            try {
+                filter.filter(path, attrs).ifPresent(value -> {
+                    var cost = attrs.size() * ArchiveWalker.decompressionCost(path);
+                    files.add(new ScheduledFile<>(path, attrs.size(), value, cost));
+                });
+            }
+            catch (RuntimeException e) {
+                LOG.warning("Could not process file, skipping: " + path + " (" + e + ")");
+            }
+        });
+        files.sort(Comparator.comparingDouble((ScheduledFile<T> f) -> f.cost).reversed());
+        // predict before consuming any file: the time taken by the walk so far, plus the estimated schedule
+        predictedMakespanNanos = OptionalDouble.of(System.nanoTime() - start + predictMakespan(files) * NANOS_PER_COST);
 
-            executor.invokeAll(todo);
+        for (var file : files) {
+            submit(file.path, file.size, () -> Optional.of(file.value), consumer);
         }
-        catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+    }
+
+    /** Returns the cost of the busiest thread if files are consumed in order, each by the least loaded thread */
+    private double predictMakespan(List<? extends ScheduledFile<?>> files) {
+        var loads = new PriorityQueue<Double>();
+        for (int i = 0; i < threads; i++) {
+            loads.add(0.0);
+        }
+        for (var file : files) {
+            loads.add(loads.poll() + file.cost);
+        }
+        return loads.stream().mapToDouble(Double::doubleValue).max().orElse(0);
+    }
+
+    /** Logs how long the walk took, how long it was predicted to take, and how evenly work was spread across threads */
+    private void logLoad(long makespanNanos) {
+        var totalNanos = busyNanos.values().stream().mapToLong(Long::longValue).sum();
+        var maxNanos = busyNanos.values().stream().mapToLong(Long::longValue).max().orElse(0);
+        var averageNanos = (double) totalNanos / threads;
+        var predicted = predictedMakespanNanos.isPresent() ?
+                String.format(" (predicted %.1f s)", predictedMakespanNanos.getAsDouble() / 1e9) : "";
+        LOG.info(String.format("Walk on %d threads: makespan %.1f s%s, threads busy for %.1f s on average and %.1f s at most (imbalance %.2f)",
+                threads, makespanNanos / 1e9, predicted, averageNanos / 1e9, maxNanos / 1e9, averageNanos > 0 ? maxNanos / averageNanos : 1.0));
+    }
+
+    /** Adds the time since start to the time the current thread spent working */
+    private void addBusyTime(long start) {
+        busyNanos.merge(Thread.currentThread(), System.nanoTime() - start, Long::sum);
+    }
+
+    /**
+     * Hands a file over to a worker thread, blocking while too many files are already waiting for one.
+     * The worker opens the file only if the filter returns a value.
+     */
+    private <T> void submit(Path path, long size, Supplier<Optional<T>> filter, FileConsumer<T> consumer) throws InterruptedIOException {
+        try {
+            pendingTasks.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while walking " + path);
+        }
+
+        executor.execute(() -> {
+            var start = System.nanoTime();
+            try {
+                var value = filter.get();
+                if (value.isPresent()) {
+                    try (var fileStream = Files.newInputStream(path);
+                         var stream = new PooledBufferedInputStream(fileStream, size)) {
+                        consumer.accept(path, value.get(), stream);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                LOG.warning("Could not process file, skipping: " + path + " (" + e + ")");
+            }
+            finally {
+                addBusyTime(start);
+                pendingTasks.release();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on a worker thread if one can take it without waiting, or on the calling thread otherwise.
+     * Never blocks, so that worker threads can use it to share their own work with idle workers.
+     */
+    public void fork(Runnable task) {
+        if (pendingTasks.tryAcquire()) {
+            try {
+                executor.execute(() -> {
+                    var start = System.nanoTime();
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        addBusyTime(start);
+                        pendingTasks.release();
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                // the walk is over and the pool is shutting down
+                pendingTasks.release();
+            }
         }
+        task.run();
     }
 
+    @FunctionalInterface
+    private interface FileVisitor {
+        void visit(Path path, BasicFileAttributes attrs) throws IOException;
+    }
+
+    /** A file to consume, with the value returned by the filter and its estimated cost */
+    private static class ScheduledFile<T> {
+        final Path path;
+        final long size;
+        final T value;
+        final double cost;
+
+        ScheduledFile(Path path, long size, T value, double cost) {
+            this.path = path;
+            this.size = size;
+            this.value = value;
+            this.cost = cost;
+        }
+    }
+
+    /** Waits for all submitted files to be consumed, then stops the worker threads. */
+    private void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package com.suse.pase.directory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Watches a directory, recursively, for changes.
+ *
+ * Changed paths are handed over in batches: a batch is complete when no change happened for QUIET_MILLIS, or
+ * MAX_DELAY_MILLIS after its first change, so that bursts of changes (e.g. a package being copied) are handled together.
+ */
+public class DirectoryWatcher implements AutoCloseable {
+
+    /** A batch is handed over after this long without changes... */
+    private static final long QUIET_MILLIS = 1000;
+    /** ...or at most this long after its first change */
+    private static final long MAX_DELAY_MILLIS = 5000;
+
+    private static Logger LOG = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final boolean followSymlinks;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /** Starts watching a directory and all directories under it */
+    public DirectoryWatcher(Path path, boolean followSymlinks) throws IOException {
+        this.followSymlinks = followSymlinks;
+        this.watchService = path.getFileSystem().newWatchService();
+        register(path);
+        LOG.info("Watching directories: " + directories.size());
+    }
+
+    /** Consumes batches of changes */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        /**
+         * Called with paths of created, modified or deleted files and directories. Paths under directories in the
+         * same batch are left out, as the whole directory changed.
+         */
+        void accept(List<Path> paths) throws IOException;
+    }
+
+    /**
+     * Calls the consumer with batches of changes, until the deadline.
+     * @return true at the deadline, false as soon as some changes were lost (because of too many changes at once):
+     * the whole directory has to be walked again in that case
+     */
+    public boolean watch(Instant until, BatchConsumer consumer) throws IOException, InterruptedException {
+        var batch = new HashSet<Path>();
+        var batchStart = 0L;
+        while (true) {
+            var now = System.currentTimeMillis();
+            long timeout;
+            if (batch.isEmpty()) {
+                timeout = until.toEpochMilli() - now;
+                if (timeout <= 0) {
+                    return true;
+                }
+            }
+            else {
+                timeout = Math.min(QUIET_MILLIS, batchStart + MAX_DELAY_MILLIS - now);
+            }
+
+            var key = timeout > 0 ? watchService.poll(timeout, TimeUnit.MILLISECONDS) : null;
+            if (key == null) {
+                if (!batch.isEmpty()) {
+                    consumer.accept(withoutDescendants(batch));
+                    batch.clear();
+                }
+                continue;
+            }
+
+            var directory = directories.get(key);
+            var events = key.pollEvents();
+            if (events.stream().anyMatch(event -> event.kind() == OVERFLOW)) {
+                // every key might have an overflow event queued: drop all of them, so that each key reports changes
+                // again and does not start another walk of the whole directory
+                reset(key);
+                for (WatchKey pending; (pending = watchService.poll()) != null; ) {
+                    pending.pollEvents();
+                    reset(pending);
+                }
+                return false;
+            }
+            for (var event : events) {
+                if (directory == null) {
+                    continue;
+                }
+                var path = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_MODIFY && Files.isDirectory(path, linkOptions())) {
+                    // changes in the directory have their own events
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    batchStart = now;
+                }
+                batch.add(path);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, linkOptions())) {
+                    // files might have been created in the new directory before this point, they are in the batch anyway
+                    register(path);
+                }
+            }
+            reset(key);
+        }
+    }
+
+    /** Makes a key report changes again, after its events were taken */
+    private void reset(WatchKey key) {
+        if (!key.reset()) {
+            // directory was deleted
+            directories.remove(key);
+        }
+    }
+
+    /** Registers a directory and all directories under it */
+    private void register(Path path) throws IOException {
+        Set<FileVisitOption> fileVisitOptions = followSymlinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : Collections.emptySet();
+        Files.walkFileTree(path, fileVisitOptions, 200, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                LOG.warning("Could not watch directory, skipping: " + file + " (" + e + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private LinkOption[] linkOptions() {
+        return followSymlinks ? new LinkOption[0] : new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+    }
+
+    /** Returns paths that are not under any other path in the set */
+    private static List<Path> withoutDescendants(Set<Path> paths) {
+        return paths.stream()
+                .filter(path -> {
+                    for (var parent = path.getParent(); parent != null; parent = parent.getParent()) {
+                        if (paths.contains(parent)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                })
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,34 @@
+package com.suse.pase.directory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** A BufferedInputStream that borrows its buffer from BufferPool, and gives it back when closed or released. */
+class PooledBufferedInputStream extends BufferedInputStream {
+
+    /** Wraps a stream with a buffer fit for sizeHint bytes (negative if unknown) */
+    PooledBufferedInputStream(InputStream in, long sizeHint) {
+        super(in, 1);
+        // one more byte, so that reading a marked stream up to its end never needs a bigger buffer
+        buf = BufferPool.acquire(sizeHint < 0 ? sizeHint : sizeHint + 1);
+    }
+
+    /** Gives the buffer back to the pool without closing the underlying stream. This stream cannot be used afterwards. */
+    void release() {
+        var buffer = buf;
+        buf = null;
+        if (buffer != null) {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        var buffer = buf;
+        super.close();
+        if (buffer != null) {
+            BufferPool.release(buffer);
+        }
+    }
+}
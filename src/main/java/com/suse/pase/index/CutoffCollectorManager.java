@@ -0,0 +1,91 @@
+package com.suse.pase.index;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.FilterScorable;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreCachingWrappingScorer;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Collects the top hits scoring above a cutoff, one collector per searched slice.
+ *
+ * The cutoff is known before the search starts, so it is passed to scorers as the minimum competitive score: they
+ * can then skip documents that could never score above it, instead of scoring them only to have them dropped.
+ */
+class CutoffCollectorManager implements CollectorManager<CutoffCollectorManager.CutoffCollector, TopDocs> {
+    private final int numHits;
+    /** Smallest score above the cutoff */
+    private final float minScore;
+
+    /** @param cutoff only hits scoring more than this are collected */
+    CutoffCollectorManager(int numHits, double cutoff) {
+        this.numHits = numHits;
+        var floatCutoff = (float) cutoff;
+        this.minScore = floatCutoff > cutoff ? floatCutoff : Math.nextUp(floatCutoff);
+    }
+
+    @Override
+    public CutoffCollector newCollector() {
+        // once numHits are collected, hit counts do not matter: let scorers skip documents as soon as possible
+        return new CutoffCollector(TopScoreDocCollector.create(numHits, numHits));
+    }
+
+    @Override
+    public TopDocs reduce(Collection<CutoffCollector> collectors) {
+        return TopDocs.merge(numHits, collectors.stream()
+                .map(collector -> collector.top.topDocs())
+                .toArray(TopDocs[]::new));
+    }
+
+    /** Passes the cutoff to scorers, and never collects hits below it */
+    class CutoffCollector implements Collector {
+        private final TopScoreDocCollector top;
+
+        CutoffCollector(TopScoreDocCollector top) {
+            this.top = top;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            return new FilterLeafCollector(top.getLeafCollector(context)) {
+                private Scorable scorer;
+
+                @Override
+                public void setScorer(Scorable scorer) throws IOException {
+                    // scores are read here and by the top collector, compute them once
+                    this.scorer = new ScoreCachingWrappingScorer(scorer);
+                    scorer.setMinCompetitiveScore(minScore);
+                    // the top collector raises the minimum as it fills up, but never below the cutoff
+                    in.setScorer(new FilterScorable(this.scorer) {
+                        @Override
+                        public void setMinCompetitiveScore(float minCompetitiveScore) throws IOException {
+                            in.setMinCompetitiveScore(Math.max(minCompetitiveScore, minScore));
+                        }
+                    });
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    // scorers are allowed to return documents below the minimum competitive score
+                    if (scorer.score() >= minScore) {
+                        in.collect(doc);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.TOP_SCORES;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.suse.pase.index;
+
+import static com.suse.pase.index.IndexCommons.hasLiveDoc;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of fingerprints, held in memory as 128-bit digests in an open addressing hash table.
+ *
+ * Fingerprints are hexadecimal strings, only their first 128 bits are kept. The set cannot be changed after loading,
+ * but each fingerprint can be marked as seen. Lookups and marks do not lock nor allocate.
+ */
+class FingerprintSet {
+    private static final int HEX_DIGITS = 32;
+    private static final int MAX_SIZE = 1 << 27;
+
+    /** Pairs of longs (high and low 64 bits of each digest), all zeroes mark empty slots */
+    private final long[] table;
+    private final int mask;
+    private final boolean containsZero;
+    private final int size;
+    /** One bit per slot (plus one for the all zeroes digest), set for fingerprints marked as seen */
+    private final AtomicLongArray seen;
+
+    private FingerprintSet(long[] table, boolean containsZero, int size) {
+        this.table = table;
+        this.mask = table.length / 2 - 1;
+        this.containsZero = containsZero;
+        this.size = size;
+        this.seen = new AtomicLongArray((table.length / 2 + 1 + 63) / 64);
+    }
+
+    /** Loads all terms of a field with at least one live document, the field must contain fingerprints */
+    static FingerprintSet load(IndexReader reader, String field) throws IOException {
+        long upperBound = 0;
+        for (var leaf : reader.leaves()) {
+            var terms = leaf.reader().terms(field);
+            if (terms != null) {
+                upperBound += terms.size();
+            }
+        }
+
+        if (upperBound > MAX_SIZE) {
+            throw new IllegalStateException("Too many fingerprints to hold in memory: " + upperBound);
+        }
+        // keep the load factor under 0.5
+        var slots = Integer.highestOneBit((int) Math.max(1, upperBound)) * 4;
+        var table = new long[slots * 2];
+        var mask = slots - 1;
+        var containsZero = false;
+        var size = 0;
+
+        var terms = MultiTerms.getTerms(reader, field);
+        if (terms != null) {
+            var liveDocs = MultiBits.getLiveDocs(reader);
+            var termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                // skip fingerprints of deleted files, they would look known otherwise
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                if (!hasLiveDoc(postings, liveDocs)) {
+                    continue;
+                }
+                checkLength(term.length);
+                var high = parseHex(term, 0);
+                var low = parseHex(term, 16);
+                if (high == 0 && low == 0) {
+                    containsZero = true;
+                    size++;
+                    continue;
+                }
+                var slot = slot(high, low, mask);
+                while (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot * 2] = high;
+                table[slot * 2 + 1] = low;
+                size++;
+            }
+        }
+        return new FingerprintSet(table, containsZero, size);
+    }
+
+    /** Marks the fingerprint as seen, if it is in this set. Returns true if it is in this set */
+    boolean markSeen(String fingerprint) {
+        checkLength(fingerprint.length());
+        var slot = find(parseHex(fingerprint, 0), parseHex(fingerprint, 16));
+        if (slot < 0) {
+            return false;
+        }
+        var word = slot >>> 6;
+        var bit = 1L << (slot & 63);
+        if ((seen.get(word) & bit) == 0) {
+            seen.getAndAccumulate(word, bit, (a, b) -> a | b);
+        }
+        return true;
+    }
+
+    /** Returns true if the fingerprint (a term from the index) was marked as seen */
+    boolean isSeen(BytesRef fingerprint) {
+        checkLength(fingerprint.length);
+        var slot = find(parseHex(fingerprint, 0), parseHex(fingerprint, 16));
+        return slot >= 0 && (seen.get(slot >>> 6) & (1L << (slot & 63))) != 0;
+    }
+
+    /** Returns the slot holding the digest, or -1 if absent. The all zeroes digest uses the slot past the table */
+    private int find(long high, long low) {
+        if (high == 0 && low == 0) {
+            return containsZero ? mask + 1 : -1;
+        }
+        var slot = slot(high, low, mask);
+        while (true) {
+            var h = table[slot * 2];
+            var l = table[slot * 2 + 1];
+            if (h == high && l == low) {
+                return slot;
+            }
+            if (h == 0 && l == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static int slot(long high, long low, int mask) {
+        // digests are uniformly distributed already
+        return (int) (high ^ low) & mask;
+    }
+
+    private static long parseHex(String s, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            result = (result << 4) | hexValue(s.charAt(i));
+        }
+        return result;
+    }
+
+    private static void checkLength(int length) {
+        if (length < HEX_DIGITS) {
+            throw new IllegalArgumentException("Fingerprint too short, " + length + " hexadecimal digits");
+        }
+    }
+
+    private static long parseHex(BytesRef bytes, int offset) {
+        long result = 0;
+        for (int i = bytes.offset + offset; i < bytes.offset + offset + 16; i++) {
+            result = (result << 4) | hexValue((char) bytes.bytes[i]);
+        }
+        return result;
+    }
+
+    private static int hexValue(char c) {
+        var value = Character.digit(c, 16);
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a hexadecimal digit in fingerprint: " + c);
+        }
+        return value;
+    }
+}
@@ -1,21 +1,80 @@
 package com.suse.pase.index;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PackedTokenAttributeImpl;
 import org.apache.lucene.analysis.util.CharTokenizer;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 /** Parts common to indexing and searching */
 class IndexCommons {
     static final String SOURCE_FIELD = "source";
     static final String PATH_FIELD = "path";
     static final String FINGERPRINT_FIELD = "fingerprint";
-    static final String LAST_UPDATED_FIELD = "last_updated";
+    /** Identity of an archive's contents, on documents of archives */
+    static final String ARCHIVE_FIELD = "archive";
+    /** Size in bytes of an archive, on documents of archives */
+    static final String ARCHIVE_SIZE_FIELD = "archive_size";
+    /** Hash of a file's contents, on documents holding the contents of deduplicated files */
+    static final String CONTENT_FIELD = "content";
+    /** Hash of a file's contents, on documents of deduplicated files pointing to their contents */
+    static final String CONTENT_REF_FIELD = "content_ref";
 
+    /** Key of the commit user data telling how lines are turned into terms */
+    static final String LINE_TERMS_KEY = "line_terms";
+    /** Lines are terms as they are */
+    static final String PLAIN_LINE_TERMS = "plain";
+    /** Lines are turned into terms by a 128-bit murmur3 hash of their UTF-8 bytes */
+    static final String HASHED_LINE_TERMS = "murmur3_128";
+    /** Locality sensitive hashes of the set of lines of a file, and its whole signature as doc values, see MinHash */
+    static final String MINHASH_FIELD = "minhash";
+    /** Key of the commit user data telling whether documents have the MinHash field ("true" or "false") */
+    static final String MINHASH_KEY = "minhash";
+    /** Hash of all lines of a file, in order, see LinesDigest */
+    static final String LINES_DIGEST_FIELD = "lines_digest";
+    /** Key of the commit user data telling whether documents have the lines digest field ("true" or "false") */
+    static final String LINES_DIGEST_KEY = "lines_digest";
 
-    /** Divides text by line (treats the whole line as a term). */
+    /** Divides text by line (treats the whole line as a term, or its hash). */
     static class SourceAnalyzer extends Analyzer {
+        private static final AttributeFactory HASHED_LINE_ATTRIBUTE_FACTORY =
+                AttributeFactory.getStaticImplementation(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY, HashedLineAttributeImpl.class);
+
+        private final boolean hashLines;
+
+        SourceAnalyzer() {
+            this(false);
+        }
+
+        /** @param hashLines if true, terms are hashes of lines, see hashLine() */
+        SourceAnalyzer(boolean hashLines) {
+            this.hashLines = hashLines;
+        }
+
         private class SourceCodeTokenizer extends CharTokenizer {
             public SourceCodeTokenizer() {
-                super(DEFAULT_TOKEN_ATTRIBUTE_FACTORY, 1024);
+                super(hashLines ? HASHED_LINE_ATTRIBUTE_FACTORY : DEFAULT_TOKEN_ATTRIBUTE_FACTORY, 1024);
             }
 
             @Override
@@ -24,9 +83,195 @@ class IndexCommons {
             }
         }
 
+        /** Returns a new tokenizer, for callers that need a stream of lines outside of an IndexWriter */
+        Tokenizer newTokenizer() {
+            return new SourceCodeTokenizer();
+        }
+
         @Override
         protected TokenStreamComponents createComponents(String fieldName) {
             return new TokenStreamComponents(new SourceCodeTokenizer());
         }
     }
+
+    /** Token attributes turning a line into a binary term, the hash of the line */
+    public static final class HashedLineAttributeImpl extends PackedTokenAttributeImpl {
+        @Override
+        public BytesRef getBytesRef() {
+            return hashLine(this);
+        }
+    }
+
+    /** Returns the term of a line in indexes with hashed line terms */
+    static BytesRef hashLine(CharSequence line) {
+        return new BytesRef(Hashing.murmur3_128().hashString(line, UTF_8).asBytes());
+    }
+
+    /**
+     * MinHash signature of a set of lines, split in bands for Locality Sensitive Hashing.
+     *
+     * Each of the BANDS * ROWS values is the minimum of a different hash function over all lines, so two sets have
+     * the same value with a probability equal to their Jaccard similarity. Each band of ROWS values is a term: files
+     * with a Jaccard similarity of 0.8 share at least one band term with 99.9% probability, 0.5 with 64% and 0.2
+     * with 3%.
+     */
+    static final class MinHash implements LineSummary {
+        static final int BANDS = 16;
+        static final int ROWS = 4;
+        /** Seeds of the hash functions, the same across runs */
+        private static final long[] SEEDS = new Random(0x5EED).longs(BANDS * ROWS).toArray();
+
+        private final long[] minimums = new long[BANDS * ROWS];
+        private boolean empty = true;
+
+        MinHash() {
+            Arrays.fill(minimums, Long.MAX_VALUE);
+        }
+
+        @Override
+        public void add(CharSequence line) {
+            var hash = Hashing.murmur3_128().hashString(line, UTF_8).asLong();
+            for (int i = 0; i < minimums.length; i++) {
+                minimums[i] = Math.min(minimums[i], mix(hash ^ SEEDS[i]));
+            }
+            empty = false;
+        }
+
+        /** Returns one term per band, or none if no line was added */
+        @Override
+        public List<BytesRef> terms() {
+            if (empty) {
+                return List.of();
+            }
+            var terms = new ArrayList<BytesRef>(BANDS);
+            for (int band = 0; band < BANDS; band++) {
+                var hasher = Hashing.murmur3_128().newHasher().putInt(band);
+                for (int row = 0; row < ROWS; row++) {
+                    hasher.putLong(minimums[band * ROWS + row]);
+                }
+                terms.add(new BytesRef(hasher.hash().asBytes()));
+            }
+            return terms;
+        }
+
+        /**
+         * Returns the lowest 16 bits of the minimums of all rows, to compare with the signature of another file with
+         * similarity(). Different minimums have the same bits with a 2^-16 probability, which hardly changes estimates
+         */
+        BytesRef signature() {
+            var bytes = ByteBuffer.allocate(minimums.length * Short.BYTES);
+            for (var minimum : minimums) {
+                bytes.putShort((short) minimum);
+            }
+            return new BytesRef(bytes.array());
+        }
+
+        /** Returns the fraction of equal rows of two signatures, an estimate of the Jaccard similarity of their lines */
+        static double similarity(BytesRef signature, BytesRef other) {
+            var rows = ByteBuffer.wrap(signature.bytes, signature.offset, signature.length).asShortBuffer();
+            var otherRows = ByteBuffer.wrap(other.bytes, other.offset, other.length).asShortBuffer();
+            var equal = 0;
+            for (int i = 0; i < BANDS * ROWS; i++) {
+                if (rows.get(i) == otherRows.get(i)) {
+                    equal++;
+                }
+            }
+            return (double) equal / (BANDS * ROWS);
+        }
+
+        /** Final mix of MurmurHash3, turns a hash and a seed into a different hash function per seed */
+        private static long mix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+    /** Hash of all lines, in order: files with the same lines have the same digest, whatever their line endings */
+    static final class LinesDigest implements LineSummary {
+        private final Hasher hasher = Hashing.sha256().newHasher();
+
+        @Override
+        public void add(CharSequence line) {
+            hasher.putInt(line.length()).putUnencodedChars(line);
+        }
+
+        @Override
+        public List<BytesRef> terms() {
+            return List.of(new BytesRef(hasher.hash().toString()));
+        }
+    }
+
+    /** Summary of all lines of a file, as terms */
+    interface LineSummary {
+        void add(CharSequence line);
+
+        List<BytesRef> terms();
+    }
+
+    /** Passes a stream of lines through unchanged, adding each line to summaries of them on the way */
+    static final class LineSummaryFilter extends TokenFilter {
+        private final CharTermAttribute line = addAttribute(CharTermAttribute.class);
+        private final List<LineSummary> summaries;
+
+        LineSummaryFilter(TokenStream lines, List<LineSummary> summaries) {
+            super(lines);
+            this.summaries = summaries;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            for (var summary : summaries) {
+                summary.add(line);
+            }
+            return true;
+        }
+    }
+
+    /** Turns a summary of lines into its terms. Lines must all be added by the time it is consumed */
+    static final class LineSummaryStream extends TokenStream {
+        private final BytesTermAttribute term = addAttribute(BytesTermAttribute.class);
+        private final LineSummary summary;
+        private Iterator<BytesRef> terms;
+
+        LineSummaryStream(LineSummary summary) {
+            this.summary = summary;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (terms == null) {
+                terms = summary.terms().iterator();
+            }
+            if (!terms.hasNext()) {
+                return false;
+            }
+            clearAttributes();
+            term.setBytesRef(terms.next());
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            terms = null;
+        }
+    }
+
+    /** Returns true if any of the postings' documents is not deleted */
+    static boolean hasLiveDoc(PostingsEnum postings, Bits liveDocs) throws IOException {
+        int doc;
+        while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -1,31 +1,79 @@
 package com.suse.pase.index;
 
+import static com.suse.pase.index.IndexCommons.CONTENT_FIELD;
+import static com.suse.pase.index.IndexCommons.CONTENT_REF_FIELD;
+import static com.suse.pase.index.IndexCommons.HASHED_LINE_TERMS;
+import static com.suse.pase.index.IndexCommons.LINE_TERMS_KEY;
+import static com.suse.pase.index.IndexCommons.LINES_DIGEST_FIELD;
+import static com.suse.pase.index.IndexCommons.LINES_DIGEST_KEY;
+import static com.suse.pase.index.IndexCommons.MINHASH_FIELD;
+import static com.suse.pase.index.IndexCommons.MINHASH_KEY;
 import static com.suse.pase.index.IndexCommons.PATH_FIELD;
 import static com.suse.pase.index.IndexCommons.SOURCE_FIELD;
-import static java.util.Arrays.stream;
-import static java.util.Collections.singleton;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
+import static com.suse.pase.index.IndexCommons.hashLine;
 import static org.apache.lucene.search.BooleanClause.Occur.SHOULD;
 
+import com.google.common.base.Stopwatch;
+import com.suse.pase.index.IndexCommons.LineSummary;
+import com.suse.pase.index.IndexCommons.LinesDigest;
+import com.suse.pase.index.IndexCommons.MinHash;
+import com.suse.pase.index.IndexCommons.SourceAnalyzer;
 import com.suse.pase.query.ByContentQuery;
 import com.suse.pase.query.PatchQuery;
 import com.suse.pase.query.QueryResult;
 
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.logging.Logger;
 
 /** Encapsulates Lucene details about searching indexes */
@@ -34,6 +82,12 @@ public class IndexSearcher implements AutoCloseable {
     /** Maximum number of results per file */
     private final int HIT_LIMIT = 50;
 
+    /** Number of candidates found by MinHash band lookups, then ranked by the similarity of their signature */
+    private final int MINHASH_CANDIDATES = 10 * HIT_LIMIT;
+
+    /** Minimum estimated Jaccard similarity of the lines of near-duplicate files */
+    private final double MINHASH_MIN_SIMILARITY = 0.5;
+
     /**
      * Document frequency cutoff percentage, this is used to filter queries with over-popular results.
      *
@@ -47,115 +101,934 @@ public class IndexSearcher implements AutoCloseable {
     /** Maximum number of unexpected lines between matching lines */
     private static final int SLOP = 3;
 
+    private static final Set<String> STORED_FIELDS = Set.of(PATH_FIELD, CONTENT_FIELD);
+    private static final Set<String> PATH_ONLY = Set.of(PATH_FIELD);
+    private static final int PRELOAD_BUFFER_SIZE = 1024 * 1024;
+    /** Marks a failed search among the indexes of targets whose search ended */
+    private static final int FAILED = -1;
+    /** Splits files searched by content in lines, in the same way as indexed files */
+    private static final SourceAnalyzer LINE_ANALYZER = new SourceAnalyzer();
+
     private static Logger LOG = Logger.getLogger(IndexSearcher.class.getName());
-    private final DirectoryReader reader;
-    private final org.apache.lucene.search.IndexSearcher searcher;
+    /** Provides the latest snapshot of the index, releasing older ones when no search uses them anymore */
+    private final SnapshotManager snapshots;
+    /** Searches segments in parallel, null if searches run on the calling thread only */
+    private final SearchExecutor executor;
+    /**
+     * Searches files of a patch in parallel, separate from executor so that queries never wait for their own slices.
+     * Created by the first search of more than one file, so that searches of one file never start threads
+     */
+    private SearchExecutor queryExecutor;
+    /** Threads searching files of a patch in parallel, including the calling thread */
+    private final int queryPoolSize;
+    /** True once closed, no query executor is created anymore */
+    private boolean closed;
+    /** Maximum number of files of a single patch searched in parallel */
+    private final int queriesPerRequest;
     private final boolean explain;
-    private final double minTermScore;
+    /** True if lines are indexed as hashes, see IndexCommons.hashLine() */
+    private final boolean hashedLines;
+    /** True if MinHash signatures of files are indexed, see IndexCommons.MinHash */
+    private final boolean minHash;
+    /** True if digests of lines of files are indexed, see IndexCommons.LinesDigest */
+    private final boolean linesDigest;
+    /** Extensions of index files to preload on warm-up */
+    private volatile Set<String> preloadExtensions = Set.of();
+    /** Patches to search on warm-up */
+    private volatile List<List<PatchQuery>> samplePatches = List.of();
+    /** Lines in at least this fraction of files are left out of patch queries, 0 keeps all lines */
+    private volatile double commonLineRatio;
 
     public IndexSearcher(Path path, boolean explain) throws IOException {
-        this.reader = DirectoryReader.open(FSDirectory.open(path));
-        this.searcher = new org.apache.lucene.search.IndexSearcher(reader);
-        // what we really want here is IDF, without any term frequency part
-        // setting k1 = 0 (and b to any value) simplifies the formula to a pure IDF
-        // https://en.wikipedia.org/wiki/Okapi_BM25
-        this.searcher.setSimilarity(new BM25Similarity(0,0));
+        this(path, explain, 0);
+    }
+
+    /**
+     * @param searchThreads number of threads searching segments in parallel. 0 means one per shard if the index has
+     *                      more than one, and none otherwise. 1 or less searches on the calling thread only
+     */
+    public IndexSearcher(Path path, boolean explain, int searchThreads) throws IOException {
+        this(path, explain, searchThreads, 0, 0);
+    }
+
+    /**
+     * @param searchThreads number of threads searching segments in parallel. 0 means one per shard if the index has
+     *                      more than one, and none otherwise. 1 or less searches on the calling thread only
+     * @param queryThreads number of threads searching files of patches in parallel, shared by all concurrent searches.
+     *                     0 means one per CPU
+     * @param queriesPerRequest maximum number of files of one patch searched in parallel, so that one big patch does
+     *                          not take all query threads. 0 means all query threads
+     */
+    public IndexSearcher(Path path, boolean explain, int searchThreads, int queryThreads, int queriesPerRequest) throws IOException {
+        this.queryPoolSize = queryThreads > 0 ? queryThreads : Runtime.getRuntime().availableProcessors();
+        this.queriesPerRequest = queriesPerRequest > 0 ? Math.min(queriesPerRequest, queryPoolSize) : queryPoolSize;
+
         this.explain = explain;
 
-        // Calculate the score for a term present in P% of the documents
-        // N is the total number of documents in the index
-        var N = searcher.getIndexReader().getDocCount(PATH_FIELD);
-        // now, per definition of BM25 with k1=0 we have
-        // IDF=ln(((N-n) + 0.5) / (N + 0.5) +1)
-        this.minTermScore = Math.log((N - P * N + 0.5)/ (P * N + 0.5) + 1);
+        var reader = Shards.open(path);
+        SearchExecutor executor = null;
+        try {
+            this.hashedLines = HASHED_LINE_TERMS.equals(commitData(reader, LINE_TERMS_KEY));
+            this.minHash = Boolean.parseBoolean(commitData(reader, MINHASH_KEY));
+            this.linesDigest = Boolean.parseBoolean(commitData(reader, LINES_DIGEST_KEY));
+            var threads = searchThreads != 0 ? searchThreads : reader.getContext().children().size();
+            executor = threads > 1 ? new SearchExecutor(threads) : null;
+            this.executor = executor;
+            this.snapshots = new SnapshotManager(new Snapshot(reader, executor));
+        }
+        catch (IOException | RuntimeException e) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            reader.close();
+            throw e;
+        }
+    }
+
+    /** Returns the executor searching files of patches in parallel, creating it if needed, or null if there is none */
+    private synchronized SearchExecutor queryExecutor() {
+        // the calling thread searches too, so the pool needs one thread less
+        if (queryExecutor == null && queryPoolSize > 1 && !closed) {
+            queryExecutor = new SearchExecutor(queryPoolSize - 1);
+        }
+        return queryExecutor;
+    }
+
+    /** Returns a value of the index format, as recorded by IndexWriter in the last commit of the shards, or null */
+    private static String commitData(IndexReader reader, String key) throws IOException {
+        for (var child : reader.getContext().children()) {
+            var value = ((DirectoryReader) child.reader()).getIndexCommit().getUserData().get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /** A point in time view of the index, with everything needed to search it */
+    private static class Snapshot {
+        final IndexReader reader;
+        final org.apache.lucene.search.IndexSearcher searcher;
+        final double minTermScore;
+        /** Number of files, counting files with the same contents once */
+        final int fileCount;
+
+        Snapshot(IndexReader reader, SearchExecutor executor) throws IOException {
+            this.reader = reader;
+            // all shards are searched by one searcher, so that term statistics are the same as with a single shard
+            this.searcher = executor != null ? new SlicingSearcher(reader, executor) : new org.apache.lucene.search.IndexSearcher(reader);
+            // what we really want here is IDF, without any term frequency part
+            // setting k1 = 0 (and b to any value) simplifies the formula to a pure IDF
+            // https://en.wikipedia.org/wiki/Okapi_BM25
+            this.searcher.setSimilarity(new BM25Similarity(0,0));
+
+            // Calculate the score for a term present in P% of the documents
+            // N is the total number of documents in the index, counting files with the same contents once
+            var N = reader.getDocCount(PATH_FIELD) - reader.getDocCount(CONTENT_REF_FIELD) + reader.getDocCount(CONTENT_FIELD);
+            this.fileCount = N;
+            // now, per definition of BM25 with k1=0 we have
+            // IDF=ln(((N-n) + 0.5) / (N + 0.5) +1)
+            this.minTermScore = Math.log((N - P * N + 0.5)/ (P * N + 0.5) + 1);
+        }
+
+        /** Returns a string that changes whenever the index changes, made of the versions of all shards */
+        String getGeneration() {
+            return reader.getContext().children().stream()
+                    .map(shard -> Long.toString(((DirectoryReader) shard.reader()).getVersion()))
+                    .collect(Collectors.joining("-"));
+        }
+    }
+
+    /**
+     * Keeps the latest snapshot of the index, in the style of Lucene's SearcherManager but across all shards.
+     * Snapshots are reference counted through their reader: searches acquire the current one and release it when done.
+     */
+    private class SnapshotManager extends ReferenceManager<Snapshot> {
+        SnapshotManager(Snapshot snapshot) {
+            current = snapshot;
+        }
+
+        @Override
+        protected Snapshot refreshIfNeeded(Snapshot old) throws IOException {
+            var shards = old.reader.getContext().children();
+            var readers = new DirectoryReader[shards.size()];
+            try {
+                var changed = false;
+                for (int i = 0; i < readers.length; i++) {
+                    var shard = (DirectoryReader) shards.get(i).reader();
+                    var newReader = DirectoryReader.openIfChanged(shard);
+                    changed |= newReader != null;
+                    readers[i] = newReader != null ? newReader : shard;
+                }
+                if (!changed) {
+                    return null;
+                }
+
+                // the new reader shares unchanged shards with the old one
+                var reader = new MultiReader(readers, false);
+                try {
+                    var snapshot = new Snapshot(reader, executor);
+                    // warm up before searches can use it, so that the switch does not slow them down
+                    warm(snapshot, old);
+                    LOG.info("Opened new index version: " + snapshot.getGeneration());
+                    return snapshot;
+                }
+                catch (IOException | RuntimeException e) {
+                    reader.decRef();
+                    throw e;
+                }
+            }
+            finally {
+                // shards opened here are only referenced by the new reader, if any, from now on
+                for (int i = 0; i < readers.length; i++) {
+                    if (readers[i] != null && readers[i] != shards.get(i).reader()) {
+                        readers[i].decRef();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void decRef(Snapshot snapshot) throws IOException {
+            snapshot.reader.decRef();
+        }
+
+        @Override
+        protected boolean tryIncRef(Snapshot snapshot) {
+            return snapshot.reader.tryIncRef();
+        }
+
+        @Override
+        protected int getRefCount(Snapshot snapshot) {
+            return snapshot.reader.getRefCount();
+        }
+    }
+
+    /**
+     * Warms up the current snapshot, and configures how to warm up new ones before switching to them.
+     * @param preloadExtensions extensions of index files to read in full, so that they are in the page cache
+     *                          (e.g. "tim", "doc", "pos")
+     * @param samplePatches patches to search, so that the parts of the index they need are loaded
+     */
+    public void warmUp(Set<String> preloadExtensions, List<List<PatchQuery>> samplePatches) throws IOException {
+        this.preloadExtensions = preloadExtensions;
+        this.samplePatches = samplePatches;
+        var snapshot = acquire();
+        try {
+            warm(snapshot, null);
+        }
+        finally {
+            release(snapshot);
+        }
+    }
+
+    /** Warms up segments that are in the snapshot but not in the old one (if any) */
+    private void warm(Snapshot snapshot, Snapshot old) throws IOException {
+        var timer = Stopwatch.createStarted();
+        var oldSegments = old == null ? Set.of() : old.reader.leaves().stream()
+                .map(leaf -> leaf.reader().getCoreCacheHelper().getKey())
+                .collect(Collectors.toSet());
+        var preloadedBytes = 0L;
+        for (var leaf : snapshot.reader.leaves()) {
+            if (oldSegments.contains(leaf.reader().getCoreCacheHelper().getKey())) {
+                continue;
+            }
+            preloadedBytes += preload(leaf.reader());
+            // load the term index and the stored fields index
+            var terms = leaf.reader().terms(SOURCE_FIELD);
+            if (terms != null) {
+                terms.iterator().seekCeil(new BytesRef(""));
+            }
+            if (leaf.reader().maxDoc() > 0) {
+                leaf.reader().document(0, PATH_ONLY);
+            }
+        }
+
+        for (var patch : samplePatches) {
+            searchAll(patch, target -> search(snapshot, target));
+        }
+
+        LOG.info(String.format("Warm-up completed in %s: %d MiB preloaded, %d sample patches searched",
+                timer.stop(), preloadedBytes / 1024 / 1024, samplePatches.size()));
+    }
+
+    /**
+     * Reads all files of a segment with one of the preload extensions, so that the OS caches them. Files inside the
+     * compound file of small segments are read too, as slices of it.
+     * @return the number of bytes read
+     */
+    private long preload(LeafReader reader) throws IOException {
+        var unwrapped = FilterLeafReader.unwrap(reader);
+        if (preloadExtensions.isEmpty() || !(unwrapped instanceof SegmentReader)) {
+            return 0;
+        }
+        var segment = ((SegmentReader) unwrapped).getSegmentInfo();
+        var bytes = preload(segment.info.dir, segment.files());
+        if (segment.info.getUseCompoundFile()) {
+            try (var compound = segment.info.getCodec().compoundFormat().getCompoundReader(segment.info.dir, segment.info, IOContext.READONCE)) {
+                bytes += preload(compound, List.of(compound.listAll()));
+            }
+        }
+        return bytes;
+    }
+
+    /** Reads the files of a directory with one of the preload extensions, returning the number of bytes read */
+    private long preload(Directory directory, Collection<String> files) throws IOException {
+        var buffer = new byte[PRELOAD_BUFFER_SIZE];
+        var bytes = 0L;
+        for (var file : files) {
+            if (!preloadExtensions.contains(IndexFileNames.getExtension(file))) {
+                continue;
+            }
+            try (var input = directory.openInput(file, IOContext.READONCE)) {
+                var remaining = input.length();
+                while (remaining > 0) {
+                    var count = (int) Math.min(buffer.length, remaining);
+                    input.readBytes(buffer, 0, count);
+                    remaining -= count;
+                }
+                bytes += input.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Leaves lines common to many files out of patch queries, so that their long postings are not decoded. Their
+     * positions are kept as gaps, so the order and distance of the other lines still matter.
+     *
+     * Left out lines do not count in scores nor in the cutoff score. As they are at least as common as the lines
+     * defining the cutoff, a file passing the cutoff with all lines still passes it without the common ones.
+     * @param ratio fraction of files a line must be in to be left out, at least P. 0 keeps all lines
+     */
+    public void setCommonLineRatio(double ratio) {
+        this.commonLineRatio = ratio > 0 ? Math.max(ratio, P) : 0;
+    }
+
+    /**
+     * Switches to the latest commit of the index if it changed, without blocking searches. Searches that already
+     * started end on the snapshot they started with.
+     * @return true if the index did not change or the new commit was opened, false if another refresh was running
+     */
+    public boolean maybeRefresh() throws IOException {
+        return snapshots.maybeRefresh();
     }
 
     /** Searches the index for files that match the patch target
      * @return a map from filename (as specified in the patch) to list of results
      */
     public Map<String, List<QueryResult>> search(List<PatchQuery> targets) {
-        return targets.stream()
-                .collect(toMap(
-                        target -> target.getPath(),
-                        target -> {
-                            var query = buildQuery(target);
-                            var termCount = target.getLineCount();
-                            return search(query, termCount);
+        try (var view = acquireView()) {
+            return view.search(targets);
+        }
+    }
+
+    /**
+     * Searches the index for files that match the patch target, passing the results of each file to a consumer as
+     * soon as they are available. The consumer is called by the calling thread only, in the order searches end.
+     * @return a map from filename (as specified in the patch) to list of results
+     */
+    public Map<String, List<QueryResult>> search(List<PatchQuery> targets, BiConsumer<String, List<QueryResult>> consumer) {
+        try (var view = acquireView()) {
+            return view.search(targets, consumer);
+        }
+    }
+
+    private Map<String, List<QueryResult>> search(Snapshot snapshot, List<PatchQuery> targets, BiConsumer<String, List<QueryResult>> consumer) {
+        var results = searchAll(targets, target -> search(snapshot, target), (target, targetResults) -> consumer.accept(target.getPath(), targetResults));
+        return resultMap(targets, results);
+    }
+
+    /**
+     * Searches the index for files that match many patches at once (e.g. all patches of an advisory), on the same
+     * snapshot. Files with the same chunks in more than one patch, like a fix backported to several branches, are
+     * searched only once.
+     * @return a map from patch name to a map from filename to list of results, in the same order of patches
+     */
+    public Map<String, Map<String, List<QueryResult>>> search(Map<String, List<PatchQuery>> patches) {
+        try (var view = acquireView()) {
+            return view.search(patches);
+        }
+    }
+
+    private Map<String, Map<String, List<QueryResult>>> search(Snapshot snapshot, Map<String, List<PatchQuery>> patches) {
+        // the query of a file depends on its chunks only
+        var distinctTargets = new LinkedHashMap<List<List<String>>, PatchQuery>();
+        for (var targets : patches.values()) {
+            for (var target : targets) {
+                distinctTargets.putIfAbsent(target.getChunks(), target);
+            }
+        }
+        var targets = new ArrayList<>(distinctTargets.values());
+        var results = searchAll(targets, target -> search(snapshot, target));
+
+        var resultsByChunks = new HashMap<List<List<String>>, List<QueryResult>>();
+        for (int i = 0; i < targets.size(); i++) {
+            resultsByChunks.put(targets.get(i).getChunks(), results.get(i));
+        }
+        var resultMap = new LinkedHashMap<String, Map<String, List<QueryResult>>>();
+        patches.forEach((name, patchTargets) -> resultMap.put(name, resultMap(patchTargets, patchTargets.stream()
+                .map(target -> resultsByChunks.get(target.getChunks()))
+                .collect(Collectors.toList()))));
+        return resultMap;
+    }
+
+    /** Maps filenames of targets to their results, in patch order regardless of which search ended first */
+    private static Map<String, List<QueryResult>> resultMap(List<PatchQuery> targets, List<List<QueryResult>> results) {
+        var resultMap = new LinkedHashMap<String, List<QueryResult>>();
+        for (int i = 0; i < targets.size(); i++) {
+            if (resultMap.put(targets.get(i).getPath(), results.get(i)) != null) {
+                throw new IllegalStateException("Duplicate key " + targets.get(i).getPath());
+            }
+        }
+        return resultMap;
+    }
+
+    /**
+     * Searches for all targets, using up to queriesPerRequest threads: the calling thread and some query threads.
+     * @return results in the same order of targets
+     */
+    private <T> List<List<QueryResult>> searchAll(List<T> targets, Function<T, List<QueryResult>> search) {
+        return searchAll(targets, search, null);
+    }
+
+    /**
+     * Searches for all targets like above, passing the results of each target to onEnd as soon as its search ends.
+     * Query threads hand results over to the calling thread, so that onEnd is called by the calling thread only.
+     * @param onEnd called with each target and its results, in the order searches end, or null
+     */
+    private <T> List<List<QueryResult>> searchAll(List<T> targets, Function<T, List<QueryResult>> search, BiConsumer<T, List<QueryResult>> onEnd) {
+        var results = new ArrayList<List<QueryResult>>(Collections.nCopies(targets.size(), null));
+        var next = new AtomicInteger();
+        // indexes of targets whose search ended, not yet passed to onEnd, and FAILED once a search failed
+        var ended = new LinkedBlockingQueue<Integer>();
+        var failed = new AtomicBoolean();
+        var passed = new AtomicInteger();
+        var callingThread = Thread.currentThread();
+        Consumer<Integer> pass = i -> {
+            if (i != FAILED) {
+                onEnd.accept(targets.get(i), results.get(i));
+                passed.incrementAndGet();
+            }
+        };
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < targets.size()) {
+                try {
+                    results.set(i, search.apply(targets.get(i)));
+                }
+                catch (RuntimeException e) {
+                    // the whole search failed, other threads should not start searching more targets
+                    next.set(targets.size());
+                    failed.set(true);
+                    ended.add(FAILED);
+                    throw e;
+                }
+                if (onEnd != null) {
+                    ended.add(i);
+                    if (Thread.currentThread() == callingThread) {
+                        for (Integer j; (j = ended.poll()) != null; ) {
+                            pass.accept(j);
                         }
-                ));
+                    }
+                }
+            }
+        };
+
+        var helpers = new ArrayList<Future<?>>();
+        var queryExecutor = Math.min(queriesPerRequest, targets.size()) > 1 ? queryExecutor() : null;
+        if (queryExecutor != null) {
+            for (int i = 1; i < Math.min(queriesPerRequest, targets.size()); i++) {
+                helpers.add(queryExecutor.submit(worker));
+            }
+        }
+        try {
+            // work on the calling thread too, so that the search progresses even if all query threads are busy
+            worker.run();
+
+            // then pass results of query threads as their searches end
+            while (onEnd != null && passed.get() < targets.size() && !failed.get()) {
+                pass.accept(ended.take());
+            }
+        }
+        catch (InterruptedException e) {
+            next.set(targets.size());
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e) {
+            // a search or onEnd failed, e.g. because the client went away
+            next.set(targets.size());
+            throw e;
+        }
+
+        for (var helper : helpers) {
+            try {
+                helper.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
     }
 
-    /** Searches the index for files with the same contents */
+    /**
+     * Searches the index for files with the same contents. If the index has MinHash signatures, only near-duplicate
+     * files are found, and their score is the estimated Jaccard similarity of their lines (see IndexCommons.MinHash)
+     */
     public List<QueryResult> search(ByContentQuery patchableSite) {
-        var query = buildQuery(patchableSite);
-        return search(query, patchableSite.getContent().size());
+        try (var view = acquireView()) {
+            return view.search(patchableSite);
+        }
     }
 
-    private Query buildQuery(PatchQuery target) {
+    private List<QueryResult> search(Snapshot snapshot, ByContentQuery patchableSite) {
+        if (minHash) {
+            return searchNearDuplicates(snapshot, patchableSite);
+        }
+        return search(snapshot, buildQuery(patchableSite), patchableSite.getContent().size());
+    }
+
+    private Snapshot acquire() {
+        try {
+            return snapshots.acquire();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Searches the index for files with exactly the same lines (whatever their line endings) with a single term lookup.
+     * Exact duplicates all score 1. If there are none, or the index has no lines digests, searches for files with
+     * similar contents instead.
+     */
+    public List<QueryResult> searchExact(ByContentQuery file) {
+        try (var view = acquireView()) {
+            return view.searchExact(file);
+        }
+    }
+
+    private List<QueryResult> searchExact(Snapshot snapshot, ByContentQuery file) {
+        if (linesDigest) {
+            var digest = summarize(file, new LinesDigest()).terms().get(0);
+            var query = new ConstantScoreQuery(new TermQuery(new Term(LINES_DIGEST_FIELD, digest)));
+            // no cutoff, as the query has one term only
+            var results = search(snapshot, query, 0);
+            if (!results.isEmpty()) {
+                return results;
+            }
+        }
+        return search(snapshot, file);
+    }
+
+    /** Returns a view of the current version of the index, to be closed once searched */
+    public View acquireView() {
+        return new View(acquire());
+    }
+
+    /**
+     * A version of the index that stays the same until the view is closed, even if the searcher switches to a new
+     * commit in the meantime. All searches of a view see the same files, and its generation is the one they saw.
+     */
+    public class View implements AutoCloseable {
+        private final Snapshot snapshot;
+
+        private View(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /** See IndexSearcher.getGeneration() */
+        public String getGeneration() {
+            return snapshot.getGeneration();
+        }
+
+        /** See IndexSearcher.search(List) */
+        public Map<String, List<QueryResult>> search(List<PatchQuery> targets) {
+            return search(targets, (path, results) -> {});
+        }
+
+        /** See IndexSearcher.search(List, BiConsumer) */
+        public Map<String, List<QueryResult>> search(List<PatchQuery> targets, BiConsumer<String, List<QueryResult>> consumer) {
+            return IndexSearcher.this.search(snapshot, targets, consumer);
+        }
+
+        /** See IndexSearcher.search(Map) */
+        public Map<String, Map<String, List<QueryResult>>> search(Map<String, List<PatchQuery>> patches) {
+            return IndexSearcher.this.search(snapshot, patches);
+        }
+
+        /** See IndexSearcher.search(ByContentQuery) */
+        public List<QueryResult> search(ByContentQuery patchableSite) {
+            return IndexSearcher.this.search(snapshot, patchableSite);
+        }
+
+        /** See IndexSearcher.searchExact(ByContentQuery) */
+        public List<QueryResult> searchExact(ByContentQuery file) {
+            return IndexSearcher.this.searchExact(snapshot, file);
+        }
+
+        @Override
+        public void close() {
+            release(snapshot);
+        }
+    }
+
+    private void release(Snapshot snapshot) {
+        try {
+            snapshots.release(snapshot);
+        }
+        catch (IOException e) {
+            LOG.warning("Could not release index snapshot: " + e);
+        }
+    }
+
+    /** Searches the index for a file of a patch, leaving out common lines if configured */
+    private List<QueryResult> search(Snapshot snapshot, PatchQuery target) {
+        var commonLines = commonLines(snapshot, target);
+        var termCount = target.getLineCount();
+        for (var chunk : target.getChunks()) {
+            termCount -= chunk.stream().filter(commonLines::contains).count();
+        }
+        return search(snapshot, buildQuery(target, commonLines), termCount);
+    }
+
+    /** Returns the lines of a patch target that are in at least commonLineRatio of the files */
+    private Set<String> commonLines(Snapshot snapshot, PatchQuery target) {
+        var ratio = commonLineRatio;
+        if (ratio == 0) {
+            return Set.of();
+        }
+        var maxDocFreq = ratio * snapshot.fileCount;
+        var docFreqs = new HashMap<String, Integer>();
+        try {
+            for (var chunk : target.getChunks()) {
+                for (var line : chunk) {
+                    if (!docFreqs.containsKey(line)) {
+                        docFreqs.put(line, snapshot.reader.docFreq(lineTerm(line)));
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return docFreqs.entrySet().stream()
+                .filter(e -> e.getValue() >= maxDocFreq)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    private Query buildQuery(PatchQuery target, Set<String> commonLines) {
         // a query for a file SHOULD contain every chunk:
         //   - files with more matching chunks score higher
         //   - files no matching chunks are never returned
         BooleanQuery.setMaxClauseCount(1024*1024);
         return target.getChunks().stream()
-                .map(this::buildQuery)
+                .map(chunk -> buildQuery(chunk, commonLines))
+                .flatMap(Optional::stream)
                 .reduce(new BooleanQuery.Builder(), (builder, query) -> builder.add(query, SHOULD), (b1, b2) -> b2)
                 .build();
     }
 
-    private Query buildQuery(List<String> tokens) {
+    /** Returns the query for a chunk, or empty if all its lines are common */
+    private Optional<Query> buildQuery(List<String> tokens, Set<String> commonLines) {
         // a query for a chunk SHOULD contain every line close to one another
         //   - files with matching lines close together will score higher
         //   - files without all the lines matching will not be returned
         //   - line ordering must be respected
-        if (tokens.size() == 1) {
-            return new SpanTermQuery(new Term(SOURCE_FIELD, tokens.get(0)));
+        // common lines only leave a gap between the others, those at the start and at the end are just dropped
+        var first = 0;
+        while (first < tokens.size() && commonLines.contains(tokens.get(first))) {
+            first++;
         }
-        return tokens.stream()
-                .map(token -> new SpanTermQuery(new Term(SOURCE_FIELD, token)))
-                .reduce(new SpanNearQuery.Builder(SOURCE_FIELD, true), SpanNearQuery.Builder::addClause, (b1, b2) -> b2)
-                .setSlop(SLOP)
-                .build();
+        var last = tokens.size() - 1;
+        while (last >= first && commonLines.contains(tokens.get(last))) {
+            last--;
+        }
+        if (first > last) {
+            return Optional.empty();
+        }
+        if (first == last) {
+            return Optional.of(new SpanTermQuery(lineTerm(tokens.get(first))));
+        }
+
+        var builder = new SpanNearQuery.Builder(SOURCE_FIELD, true);
+        var gap = 0;
+        for (var token : tokens.subList(first, last + 1)) {
+            if (commonLines.contains(token)) {
+                gap++;
+                continue;
+            }
+            if (gap > 0) {
+                builder.addGap(gap);
+                gap = 0;
+            }
+            builder.addClause(new SpanTermQuery(lineTerm(token)));
+        }
+        return Optional.of(builder.setSlop(SLOP).build());
     }
 
     private Query buildQuery(ByContentQuery file) {
         // a query for a file SHOULD contain every chunk
         BooleanQuery.setMaxClauseCount(1024*1024);
         return file.getContent().stream()
-                .map(t -> new Term(SOURCE_FIELD, t))
+                .map(this::lineTerm)
                 .reduce(new BooleanQuery.Builder(), (builder, term) -> builder.add(new TermQuery(term), SHOULD), (b1, b2) -> b2)
                 .build();
     }
 
-    /** Searches the index for a patch (list of chunks */
-    private List<QueryResult> search(Query query, int termCount) {
+    /** Returns a query matching files sharing bands of their MinHash signature with the file */
+    private static Query buildCandidateQuery(MinHash signature) {
+        var builder = new BooleanQuery.Builder();
+        for (var band : signature.terms()) {
+            builder.add(new TermQuery(new Term(MINHASH_FIELD, band)), SHOULD);
+        }
+        return builder.build();
+    }
+
+    /** Returns a summary of the lines of a file, split in lines in the same way as indexed files */
+    private static <T extends LineSummary> T summarize(ByContentQuery file, T summary) {
+        try (var tokenizer = LINE_ANALYZER.newTokenizer()) {
+            var line = tokenizer.addAttribute(CharTermAttribute.class);
+            tokenizer.setReader(new StringReader(String.join("\n", file.getContent())));
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                summary.add(line);
+            }
+            tokenizer.end();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return summary;
+    }
+
+    /** Returns the term of a line, in the format of the index */
+    private Term lineTerm(String line) {
+        return hashedLines ? new Term(SOURCE_FIELD, hashLine(line)) : new Term(SOURCE_FIELD, line);
+    }
+
+    /** Searches the index for a patch or a file */
+    private List<QueryResult> search(Snapshot snapshot, Query query, int termCount) {
+        var minScore = snapshot.minTermScore * termCount;
         try {
-            var results = searcher.search(query, HIT_LIMIT);
-
-            return stream(results.scoreDocs)
-                    .map(scoreDoc -> {
-                        try {
-                            var doc = searcher.doc(scoreDoc.doc, singleton(PATH_FIELD));
-                            var path = doc.getField(PATH_FIELD).stringValue();
-                            if (explain) {
-                                LOG.info("Score explanation for: " + path + " (score: " + scoreDoc.score + ")");
-                                LOG.info(searcher.explain(query, scoreDoc.doc).toString());
-                            }
-                            return new QueryResult(path, scoreDoc.score);
-                        }
-                        catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    })
-                    .filter(r -> r.score > minTermScore * termCount)
-                    .collect(toList());
+            var results = snapshot.searcher.search(query, new CutoffCollectorManager(HIT_LIMIT, minScore));
+            return results(snapshot, query, results.scoreDocs, minScore);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Searches the index for files sharing bands of their MinHash signature with the file, then ranks them by the
+     * similarity of their whole signature, without looking up any line
+     */
+    private List<QueryResult> searchNearDuplicates(Snapshot snapshot, ByContentQuery file) {
+        var signature = summarize(file, new MinHash());
+        var query = buildCandidateQuery(signature);
+        try {
+            var candidates = snapshot.searcher.search(query, MINHASH_CANDIDATES).scoreDocs;
+            // in document order, as doc values are read forward
+            Arrays.sort(candidates, Comparator.comparingInt(scoreDoc -> scoreDoc.doc));
+            var leaves = snapshot.reader.leaves();
+            var nearDuplicates = new ArrayList<ScoreDoc>();
+            LeafReaderContext leaf = null;
+            BinaryDocValues signatures = null;
+            for (var candidate : candidates) {
+                if (leaf == null || candidate.doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(candidate.doc, leaves));
+                    signatures = leaf.reader().getBinaryDocValues(MINHASH_FIELD);
+                }
+                if (signatures != null && signatures.advanceExact(candidate.doc - leaf.docBase)) {
+                    var similarity = MinHash.similarity(signature.signature(), signatures.binaryValue());
+                    if (similarity >= MINHASH_MIN_SIMILARITY) {
+                        nearDuplicates.add(new ScoreDoc(candidate.doc, (float) similarity));
+                    }
+                }
+            }
+            nearDuplicates.sort(Comparator.comparingDouble((ScoreDoc scoreDoc) -> scoreDoc.score).reversed());
+            var top = nearDuplicates.subList(0, Math.min(HIT_LIMIT, nearDuplicates.size())).toArray(ScoreDoc[]::new);
+            return results(snapshot, query, top, 0);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the paths of hits scoring more than minScore, explaining their scores by the query if configured */
+    private List<QueryResult> results(Snapshot snapshot, Query query, ScoreDoc[] scoreDocs, double minScore) throws IOException {
+        var hits = resolve(snapshot.reader, scoreDocs);
+        var queryResults = new ArrayList<QueryResult>();
+        for (int i = 0; i < hits.length; i++) {
+            var scoreDoc = scoreDocs[i];
+            var hit = hits[i];
+            if (explain) {
+                var description = hit.path != null ? hit.path : "contents " + hit.content;
+                LOG.info("Score explanation for: " + description + " (score: " + scoreDoc.score + ")");
+                LOG.info(snapshot.searcher.explain(query, scoreDoc.doc).toString());
+            }
+            if (scoreDoc.score <= minScore) {
+                continue;
+            }
+            // deduplicated contents match on behalf of all files having them
+            var paths = hit.path != null ? List.of(hit.path) : pathsWithContent(snapshot.reader, hit.content);
+            for (var path : paths) {
+                queryResults.add(new QueryResult(path, scoreDoc.score));
+            }
+        }
+        return queryResults;
+    }
+
+    /** A search hit: a file, or deduplicated contents */
+    private static class Hit {
+        /** Path of the file, or null for deduplicated contents */
+        final String path;
+        /** Hash of deduplicated contents, or null for a file */
+        final String content;
+
+        Hit(String path, String content) {
+            this.path = path;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Reads the paths of hits, or the hashes of deduplicated contents, in document order from doc values. Falls back
+     * to stored fields for documents indexed before doc values were.
+     * @return hits in the same order as scoreDocs
+     */
+    private static Hit[] resolve(IndexReader reader, ScoreDoc[] scoreDocs) throws IOException {
+        var order = IntStream.range(0, scoreDocs.length).boxed()
+                .sorted(Comparator.comparingInt(i -> scoreDocs[i].doc))
+                .collect(Collectors.toList());
+        var leaves = reader.leaves();
+        var hits = new Hit[scoreDocs.length];
+        LeafReaderContext leaf = null;
+        SortedDocValues paths = null;
+        SortedDocValues contents = null;
+        for (var i : order) {
+            var doc = scoreDocs[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                paths = leaf.reader().getSortedDocValues(PATH_FIELD);
+                contents = leaf.reader().getSortedDocValues(CONTENT_FIELD);
+            }
+            var leafDoc = doc - leaf.docBase;
+            var path = value(paths, leafDoc);
+            var content = value(contents, leafDoc);
+            if (path == null && content == null) {
+                var stored = leaf.reader().document(leafDoc, STORED_FIELDS);
+                path = stored.get(PATH_FIELD);
+                content = stored.get(CONTENT_FIELD);
+            }
+            hits[i] = new Hit(path, content);
+        }
+        return hits;
+    }
+
+    /** Returns the value of a document, or null if it has none. Documents must be read in increasing order */
+    private static String value(SortedDocValues values, int doc) throws IOException {
+        return values != null && values.advanceExact(doc) ? values.binaryValue().utf8ToString() : null;
+    }
+
+    /** Returns paths of all files referring to deduplicated contents */
+    private static List<String> pathsWithContent(IndexReader reader, String content) throws IOException {
+        var paths = new ArrayList<String>();
+        var term = new Term(CONTENT_REF_FIELD, content);
+        for (var leaf : reader.leaves()) {
+            var postings = leaf.reader().postings(term, PostingsEnum.NONE);
+            if (postings == null) {
+                continue;
+            }
+            var liveDocs = leaf.reader().getLiveDocs();
+            var docPaths = leaf.reader().getSortedDocValues(PATH_FIELD);
+            int doc;
+            while ((doc = postings.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    var path = value(docPaths, doc);
+                    paths.add(path != null ? path : leaf.reader().document(doc, PATH_ONLY).get(PATH_FIELD));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /** Returns a string that changes whenever the searched index changes, made of the versions of all shards */
+    public String getGeneration() {
+        try (var view = acquireView()) {
+            return view.getGeneration();
+        }
+    }
+
+    /** Returns statistics about the threads searching segments in parallel, or an empty map if there are none */
+    public Map<String, Number> getExecutorStats() {
+        return executor != null ? executor.getStats() : Map.of();
+    }
+
+    /** Returns statistics about the threads searching files of patches in parallel, or an empty map if there are none */
+    public synchronized Map<String, Number> getQueryExecutorStats() {
+        return queryExecutor != null ? queryExecutor.getStats() : Map.of();
+    }
+
+    /** A Lucene searcher splitting the index in slices of similar size, to be searched in parallel */
+    private static class SlicingSearcher extends org.apache.lucene.search.IndexSearcher {
+        /** Slices per search thread, more slices balance threads better but add overhead */
+        private static final int SLICES_PER_THREAD = 2;
+
+        SlicingSearcher(IndexReader reader, SearchExecutor executor) {
+            super(reader, executor);
+        }
+
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+            // called by the constructor, when only the superclass is initialized
+            var threads = ((SearchExecutor) getExecutor()).getMaximumPoolSize();
+            var count = Math.min(leaves.size(), threads * SLICES_PER_THREAD);
+
+            // assign the biggest segments first, each to the smallest slice so far
+            var sorted = new ArrayList<>(leaves);
+            sorted.sort(Comparator.comparingInt((LeafReaderContext leaf) -> leaf.reader().maxDoc()).reversed());
+            var slices = new ArrayList<List<LeafReaderContext>>();
+            var sizes = new PriorityQueue<long[]>(Comparator.comparingLong((long[] slice) -> slice[0]));
+            for (int i = 0; i < count; i++) {
+                slices.add(new ArrayList<>());
+                sizes.add(new long[] { 0, i });
+            }
+            for (var leaf : sorted) {
+                var smallest = sizes.poll();
+                slices.get((int) smallest[1]).add(leaf);
+                smallest[0] += leaf.reader().maxDoc();
+                sizes.add(smallest);
+            }
+
+            return slices.stream()
+                    .map(slice -> new LeafSlice(slice.toArray(new LeafReaderContext[0])))
+                    .toArray(LeafSlice[]::new);
+        }
+    }
+
     @Override
     public void close() throws Exception {
-        reader.close();
+        synchronized (this) {
+            closed = true;
+            if (queryExecutor != null) {
+                queryExecutor.shutdown();
+            }
+        }
+        // searches still running keep their snapshot open until they end
+        snapshots.close();
+        if (executor != null) {
+            executor.shutdown();
+        }
     }
 }
@@ -1,100 +1,296 @@
 package com.suse.pase.index;
 
+import static com.suse.pase.index.IndexCommons.ARCHIVE_FIELD;
+import static com.suse.pase.index.IndexCommons.ARCHIVE_SIZE_FIELD;
+import static com.suse.pase.index.IndexCommons.CONTENT_FIELD;
+import static com.suse.pase.index.IndexCommons.CONTENT_REF_FIELD;
 import static com.suse.pase.index.IndexCommons.FINGERPRINT_FIELD;
-import static com.suse.pase.index.IndexCommons.LAST_UPDATED_FIELD;
+import static com.suse.pase.index.IndexCommons.HASHED_LINE_TERMS;
+import static com.suse.pase.index.IndexCommons.LINE_TERMS_KEY;
+import static com.suse.pase.index.IndexCommons.LINES_DIGEST_FIELD;
+import static com.suse.pase.index.IndexCommons.LINES_DIGEST_KEY;
+import static com.suse.pase.index.IndexCommons.MINHASH_FIELD;
+import static com.suse.pase.index.IndexCommons.MINHASH_KEY;
 import static com.suse.pase.index.IndexCommons.PATH_FIELD;
+import static com.suse.pase.index.IndexCommons.PLAIN_LINE_TERMS;
 import static com.suse.pase.index.IndexCommons.SOURCE_FIELD;
+import static com.suse.pase.index.IndexCommons.hasLiveDoc;
 import static org.apache.lucene.index.IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
 
+import com.google.common.hash.Hashing;
+import com.suse.pase.index.IndexCommons.LineSummary;
+import com.suse.pase.index.IndexCommons.LineSummaryFilter;
+import com.suse.pase.index.IndexCommons.LineSummaryStream;
+import com.suse.pase.index.IndexCommons.LinesDigest;
+import com.suse.pase.index.IndexCommons.MinHash;
 import com.suse.pase.index.IndexCommons.SourceAnalyzer;
 
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /** Encapsulates Lucene details about writing indexes */
 public class IndexWriter implements AutoCloseable {
     private static Logger LOG = Logger.getLogger(IndexWriter.class.getName());
 
-    private final org.apache.lucene.index.IndexWriter writer;
-    private final DirectoryReader reader;
+    /** One writer per shard */
+    private final org.apache.lucene.index.IndexWriter[] writers;
+    private final IndexReader reader;
     private final org.apache.lucene.search.IndexSearcher searcher;
-    private final long lastUpdated;
+    /** Reader with the changes of this run as of the last refreshArchives(), null before that */
+    private IndexReader archiveReader;
+    /** Searcher used to find archives to copy */
+    private org.apache.lucene.search.IndexSearcher archiveSearcher;
+    private final FingerprintSet fingerprints;
 
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    /**
+     * Index searches for known fingerprints timed on close, to estimate how much time the in-memory set saves. As many
+     * are run before them to warm up, as the first ones are several times slower
+     */
+    private static final int LOOKUP_SAMPLES = 1024;
+
+    private static final int PRUNE_BATCH_SIZE = 1024;
+
+    /**
+     * Files this big or bigger are not deduplicated, as their contents are held in the read buffer while they are
+     * hashed, to be read again for indexing
+     */
+    private static final int MAX_DEDUP_SIZE = 4 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> HASH_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+    private final boolean dedup;
+    /** Content hashes of files indexed once and shared by all paths with the same contents */
+    private final Set<String> contents = ConcurrentHashMap.newKeySet();
+    private final AtomicLong dedupedFiles = new AtomicLong();
+    private final AtomicLong copiedArchives = new AtomicLong();
+
+    /** Splits sources in lines, for the summary fields */
+    private final SourceAnalyzer analyzer;
+    /** True if documents get the MinHash field */
+    private final boolean minHash;
+    /** True if documents get the lines digest field */
+    private final boolean linesDigest;
+    /** Summaries of lines are only looked up, they need neither frequencies nor positions */
+    private static final FieldType SUMMARY_TYPE = new FieldType();
+    static {
+        SUMMARY_TYPE.setIndexOptions(IndexOptions.DOCS);
+        SUMMARY_TYPE.setTokenized(true);
+        SUMMARY_TYPE.setOmitNorms(true);
+        SUMMARY_TYPE.freeze();
+    }
 
     /** Opens an index for writing at the specified path */
     public IndexWriter(Path path) throws IOException {
-        var config = new IndexWriterConfig(new SourceAnalyzer())
-            .setOpenMode(CREATE_OR_APPEND)
-            .setRAMBufferSizeMB(512);
+        this(path, new Options());
+    }
+
+    /** Options of an index writer. Defaults are the same of IndexWriter(Path) */
+    public static class Options {
+        private int shards;
+        private boolean dedup;
+        private boolean prune = true;
+        private boolean hashLines;
+        private boolean minHash;
+
+        /** Number of shards of a new index, or 0 to keep the existing number (one for new indexes) */
+        public Options shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
 
-        var dir = FSDirectory.open(path);
-        writer = new org.apache.lucene.index.IndexWriter(dir, config);
+        /** If true, contents of files are indexed once per distinct content, and each path refers to them */
+        public Options dedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
+        /**
+         * If false, files are never considered known and nothing is removed on close(): callers have to delete()
+         * previous versions of the files they add
+         */
+        public Options prune(boolean prune) {
+            this.prune = prune;
+            return this;
+        }
+
+        /** If true, lines of a new index are indexed as fixed size hashes instead of strings, making the index smaller */
+        public Options hashLines(boolean hashLines) {
+            this.hashLines = hashLines;
+            return this;
+        }
+
+        /**
+         * If true, a MinHash signature of the lines of each file of a new index is also indexed, so that searches by
+         * content can find near-duplicate files with few term lookups
+         */
+        public Options minHash(boolean minHash) {
+            this.minHash = minHash;
+            return this;
+        }
+    }
+
+    /**
+     * Opens an index for writing at the specified path.
+     * @throws IllegalArgumentException if the index has documents already, and hashLines or minHash is true but
+     *                                  not part of its format. Options that are false keep the format of the index
+     */
+    public IndexWriter(Path path, Options options) throws IOException {
+        var shardPaths = Shards.paths(path, options.shards);
+        var format = format(path, shardPaths, options.hashLines, options.minHash);
+        this.analyzer = new SourceAnalyzer(HASHED_LINE_TERMS.equals(format.get(LINE_TERMS_KEY)));
+        this.minHash = Boolean.parseBoolean(format.get(MINHASH_KEY));
+        this.linesDigest = Boolean.parseBoolean(format.get(LINES_DIGEST_KEY));
+        writers = new org.apache.lucene.index.IndexWriter[shardPaths.size()];
+        for (int i = 0; i < writers.length; i++) {
+            var config = new IndexWriterConfig(analyzer)
+                .setOpenMode(CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(Math.max(64, 512 / writers.length));
+            writers[i] = new org.apache.lucene.index.IndexWriter(FSDirectory.open(shardPaths.get(i)), config);
+        }
+        for (var writer : writers) {
+            writer.setLiveCommitData(format.entrySet());
+        }
 
         // read the index at the current point in time
-        writer.commit();
-        reader = DirectoryReader.open(dir);
+        commit();
+        reader = Shards.open(path);
         searcher = new org.apache.lucene.search.IndexSearcher(reader);
+        archiveSearcher = searcher;
+
+        // keep all known fingerprints in memory, so that checking files does not need an index search
+        fingerprints = options.prune ? FingerprintSet.load(reader, FINGERPRINT_FIELD) : null;
+
+        this.dedup = options.dedup;
+        if (dedup) {
+            loadContents();
+        }
+    }
 
-        lastUpdated = System.currentTimeMillis();
+    /** Loads hashes of contents already in the index */
+    private void loadContents() throws IOException {
+        var terms = MultiTerms.getTerms(reader, CONTENT_FIELD);
+        if (terms == null) {
+            return;
+        }
+        var liveDocs = MultiBits.getLiveDocs(reader);
+        var termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef content;
+        while ((content = termsEnum.next()) != null) {
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            if (hasLiveDoc(postings, liveDocs)) {
+                contents.add(content.utf8ToString());
+            }
+        }
     }
 
     /**
-     * Adds a file to the index.
-     * @return true if the file was added the index, false if it was already known or in case of errors
+     * Marks a file as still present in the index, if its fingerprint is known.
+     * Files that are not marked are removed from the index on close().
+     * @return true if the fingerprint is known, meaning the file does not need to be added again
+     */
+    public boolean refresh(String fingerprint) {
+        if (fingerprints == null) {
+            return false;
+        }
+        var start = System.nanoTime();
+        var known = fingerprints.markSeen(fingerprint);
+        lookupNanos.addAndGet(System.nanoTime() - start);
+        lookups.incrementAndGet();
+        return known;
+    }
+
+    /**
+     * Adds a file to the index. Callers should check refresh() first, to avoid adding known files again.
+     * @return true if the file was added the index, false in case of errors
      */
     public boolean add(String path, String fingerprint, Optional<BufferedInputStream> stream) {
-        try {
-            // if we already have this file and content did not change, mark it as updated
-            var fingerprintTerm = new Term(FINGERPRINT_FIELD, fingerprint);
+        return add(path, fingerprint, stream, Optional.empty(), 0);
+    }
 
-            var results = searcher.search(new TermQuery(fingerprintTerm), 1);
-            if (results.scoreDocs.length > 0) {
-                writer.updateNumericDocValue(fingerprintTerm, LAST_UPDATED_FIELD, lastUpdated);
-                return false;
-            }
+    /**
+     * Adds an archive to the index, recording the identity of its contents and its size so that copies of it can
+     * reuse the documents of its files via copyArchive(). Files in the archive are added separately.
+     * @return true if the archive was added the index, false in case of errors
+     */
+    public boolean addArchive(String path, String fingerprint, String identity, long size) {
+        return add(path, fingerprint, Optional.empty(), Optional.of(identity), size);
+    }
+
+    /**
+     * Returns true if an archive of this size was in the index when it was opened, or when refreshArchives() was last
+     * called. Archives of other sizes cannot have the same contents, so there is no need to compute their identity
+     * before indexing them.
+     */
+    public boolean hasArchiveOfSize(long size) throws IOException {
+        return archiveSearcher.count(new TermQuery(new Term(ARCHIVE_SIZE_FIELD, Long.toString(size)))) > 0;
+    }
 
-            // otherwise make a new, empty document
+    private boolean add(String path, String fingerprint, Optional<BufferedInputStream> stream, Optional<String> archiveIdentity, long archiveSize) {
+        try {
+            // make a new, empty document
             Document doc = new Document();
 
             // Add the fingerprint of the file as an indexed (i.e. searchable), but not tokenized field
             doc.add(new StringField(FINGERPRINT_FIELD, fingerprint, Store.YES));
 
             // Add the path of the file as an indexed (i.e. searchable), but not tokenized field
-            doc.add(new StringField(PATH_FIELD, path, Store.YES));
-
-            // Add the last update time a DocValue field
-            // Those are not indexed nor tokenized but they are updatable
-            // This is needed for pruning, see close()
-            doc.add(new NumericDocValuesField(LAST_UPDATED_FIELD, lastUpdated));
-
-            // Add the contents of the file to a indexed and tokenized field
-            stream.ifPresent(s -> {
-                doc.add(new TextField(SOURCE_FIELD, new InputStreamReader(s, StandardCharsets.UTF_8){
-                    @Override
-                    public void close() throws IOException {
-                        // we do not want Lucene to close the underlying stream
-                    }
-                }));
-            });
+            addKeyword(doc, PATH_FIELD, path);
+
+            archiveIdentity.ifPresent(identity -> addArchiveFields(doc, identity, archiveSize));
+
+            if (stream.isPresent()) {
+                if (dedup) {
+                    addDeduplicated(doc, stream.get());
+                }
+                else {
+                    // Add the contents of the file to a indexed and tokenized field
+                    addSource(doc, stream.get());
+                }
+            }
 
             // Create or update if existing
-            this.writer.addDocument(doc);
+            writerFor(path).addDocument(doc);
         }
         catch (IOException e) {
             LOG.warning("Could not index path, error during read: " + path);
@@ -104,16 +300,438 @@ public class IndexWriter implements AutoCloseable {
         return true;
     }
 
+    /**
+     * Adds an archive with the same contents of an archive already in the index, copying the documents of its files
+     * instead of decompressing and analyzing them again. Only works for archives whose files all refer to
+     * deduplicated contents.
+     * @return true if the archive was added to the index, false if it has to be added and walked normally
+     */
+    public boolean copyArchive(String path, String fingerprint, String identity, long size) {
+        var searcher = archiveSearcher;
+        try {
+            var archives = searcher.search(new TermQuery(new Term(ARCHIVE_FIELD, identity)), 1);
+            if (archives.scoreDocs.length == 0) {
+                return false;
+            }
+            var archive = searcher.doc(archives.scoreDocs[0].doc);
+            var archivePath = archive.get(PATH_FIELD);
+            var entryPrefix = archivePath + "/";
+
+            var query = new TermQuery(new Term(FINGERPRINT_FIELD, archive.get(FINGERPRINT_FIELD)));
+            var count = searcher.count(query);
+            var docs = new ArrayList<Document>(count);
+            for (var scoreDoc : searcher.search(query, Math.max(count, 1)).scoreDocs) {
+                var entry = searcher.doc(scoreDoc.doc);
+                var entryPath = entry.get(PATH_FIELD);
+                if (entryPath.equals(archivePath)) {
+                    continue;
+                }
+                var content = entry.get(CONTENT_REF_FIELD);
+                if (content == null || !entryPath.startsWith(entryPrefix)) {
+                    // contents of this file are not stored anywhere, it has to be analyzed again
+                    return false;
+                }
+                var doc = new Document();
+                doc.add(new StringField(FINGERPRINT_FIELD, fingerprint, Store.YES));
+                addKeyword(doc, PATH_FIELD, path + "/" + entryPath.substring(entryPrefix.length()));
+                doc.add(new StringField(CONTENT_REF_FIELD, content, Store.YES));
+                docs.add(doc);
+            }
+
+            var doc = new Document();
+            doc.add(new StringField(FINGERPRINT_FIELD, fingerprint, Store.YES));
+            addKeyword(doc, PATH_FIELD, path);
+            addArchiveFields(doc, identity, size);
+            docs.add(doc);
+
+            for (var copy : docs) {
+                writerFor(copy.get(PATH_FIELD)).addDocument(copy);
+            }
+            copiedArchives.incrementAndGet();
+            return true;
+        }
+        catch (IOException e) {
+            LOG.warning("Could not copy archive, indexing it again: " + path);
+            return false;
+        }
+    }
+
+    /**
+     * Makes archives added so far, and their files, available to copyArchive() and hasArchiveOfSize(). Must not be
+     * called while files are being added.
+     */
+    public void refreshArchives() throws IOException {
+        var previous = archiveReader;
+        archiveReader = openCurrentReader();
+        archiveSearcher = new org.apache.lucene.search.IndexSearcher(archiveReader);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private static void addArchiveFields(Document doc, String identity, long size) {
+        doc.add(new StringField(ARCHIVE_FIELD, identity, Store.YES));
+        doc.add(new StringField(ARCHIVE_SIZE_FIELD, Long.toString(size), Store.NO));
+    }
+
+    /**
+     * Makes a document refer to contents indexed in a separate document, adding that first if no other file has the
+     * same contents. Contents too big to be deduplicated are added to the document itself.
+     */
+    private void addDeduplicated(Document doc, BufferedInputStream stream) throws IOException {
+        // hash while the stream buffers the contents, then read them again from the buffer
+        stream.mark(MAX_DEDUP_SIZE);
+        var hasher = Hashing.sha256().newHasher();
+        var buffer = HASH_BUFFER.get();
+        var total = 0;
+        int count;
+        while (total < MAX_DEDUP_SIZE && (count = stream.read(buffer, 0, Math.min(buffer.length, MAX_DEDUP_SIZE - total))) > 0) {
+            hasher.putBytes(buffer, 0, count);
+            total += count;
+        }
+        stream.reset();
+        if (total == MAX_DEDUP_SIZE) {
+            addSource(doc, stream);
+            return;
+        }
+
+        var content = hasher.hash().toString();
+        if (contents.add(content)) {
+            var contentDoc = new Document();
+            addKeyword(contentDoc, CONTENT_FIELD, content);
+            addSource(contentDoc, stream);
+            try {
+                writerFor(content).addDocument(contentDoc);
+            }
+            catch (IOException | RuntimeException e) {
+                // let another file with the same contents try again
+                contents.remove(content);
+                throw e;
+            }
+        }
+        else {
+            dedupedFiles.incrementAndGet();
+        }
+        doc.add(new StringField(CONTENT_REF_FIELD, content, Store.YES));
+    }
+
+    /**
+     * Adds a field indexed as is and stored. It is also added as doc values, so that searches can read it for many
+     * hits in document order, rather than decompressing a block of stored fields per hit
+     */
+    private static void addKeyword(Document doc, String field, String value) {
+        doc.add(new StringField(field, value, Store.YES));
+        doc.add(new SortedDocValuesField(field, new BytesRef(value)));
+    }
+
+    /** Adds the contents of a file to a indexed and tokenized field, and their summaries if configured */
+    private void addSource(Document doc, InputStream stream) {
+        var reader = new InputStreamReader(stream, StandardCharsets.UTF_8){
+            @Override
+            public void close() throws IOException {
+                // we do not want Lucene to close the underlying stream
+            }
+        };
+        if (!minHash && !linesDigest) {
+            doc.add(new TextField(SOURCE_FIELD, reader));
+            return;
+        }
+
+        // the stream can be read once, so lines are summarized while they are indexed: fields are indexed in this
+        // order, so summaries are complete when their terms are read
+        var tokenizer = analyzer.newTokenizer();
+        tokenizer.setReader(reader);
+        var signature = new MinHash();
+        var digest = new LinesDigest();
+        var summaries = new ArrayList<LineSummary>();
+        if (minHash) {
+            summaries.add(signature);
+        }
+        if (linesDigest) {
+            summaries.add(digest);
+        }
+        doc.add(new TextField(SOURCE_FIELD, new LineSummaryFilter(tokenizer, summaries)));
+        if (minHash) {
+            doc.add(new Field(MINHASH_FIELD, new LineSummaryStream(signature), SUMMARY_TYPE));
+            doc.add(new Field(MINHASH_FIELD, BinaryDocValuesField.TYPE) {
+                @Override
+                public BytesRef binaryValue() {
+                    return signature.signature();
+                }
+            });
+        }
+        if (linesDigest) {
+            doc.add(new Field(LINES_DIGEST_FIELD, new LineSummaryStream(digest), SUMMARY_TYPE));
+        }
+    }
+
+    /** Removes a file from the index, along with any file in it if it is an archive, or under it if a directory */
+    public void delete(String path) throws IOException {
+        // files in an archive or directory can be in any shard
+        for (var writer : writers) {
+            writer.deleteDocuments(new Term(PATH_FIELD, path));
+            writer.deleteDocuments(new PrefixQuery(new Term(PATH_FIELD, path + "/")));
+        }
+    }
+
+    /** Makes all changes so far durable and visible to new searchers */
+    public void commit() throws IOException {
+        forEachWriter(org.apache.lucene.index.IndexWriter::commit);
+    }
+
+    /**
+     * Returns the format of the documents to write: the format of the existing documents if any, as documents of
+     * different formats would not match the same queries, or the one given by the options for a new index
+     */
+    private static Map<String, String> format(Path path, List<Path> shardPaths, boolean hashLines, boolean minHash) throws IOException {
+        var existing = new ArrayList<Map<String, String>>();
+        for (var shardPath : shardPaths) {
+            try (var directory = FSDirectory.open(shardPath)) {
+                if (DirectoryReader.indexExists(directory)) {
+                    var commit = SegmentInfos.readLatestCommit(directory);
+                    if (commit.totalMaxDoc() > 0 && !existing.contains(format(commit.getUserData()))) {
+                        existing.add(format(commit.getUserData()));
+                    }
+                }
+            }
+        }
+        if (existing.size() > 1) {
+            throw new IllegalStateException("Shards of index at " + path + " have different formats: " + existing);
+        }
+        if (existing.isEmpty()) {
+            // lines digests need no option, new indexes have them
+            return Map.of(
+                    LINE_TERMS_KEY, hashLines ? HASHED_LINE_TERMS : PLAIN_LINE_TERMS,
+                    MINHASH_KEY, Boolean.toString(minHash),
+                    LINES_DIGEST_KEY, "true");
+        }
+
+        var format = existing.get(0);
+        var missing = new ArrayList<String>();
+        if (hashLines && !HASHED_LINE_TERMS.equals(format.get(LINE_TERMS_KEY))) {
+            missing.add("hashed lines");
+        }
+        if (minHash && !Boolean.parseBoolean(format.get(MINHASH_KEY))) {
+            missing.add("MinHash signatures");
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalArgumentException("Index at " + path + " has format " + format + ", it can only get " +
+                    String.join(", ", missing) + " if created again");
+        }
+        return format;
+    }
+
+    /** Returns the format recorded in the user data of a commit */
+    private static Map<String, String> format(Map<String, String> commitData) {
+        // defaults are for indexes written before the format was recorded
+        var format = new HashMap<>(Map.of(LINE_TERMS_KEY, PLAIN_LINE_TERMS, MINHASH_KEY, "false", LINES_DIGEST_KEY, "false"));
+        for (var entry : commitData.entrySet()) {
+            format.replace(entry.getKey(), entry.getValue());
+        }
+        return format;
+    }
+
+    /** Returns the writer of the shard a document belongs to, by its path or contents hash */
+    private org.apache.lucene.index.IndexWriter writerFor(String key) {
+        return writers[Shards.route(key, writers.length)];
+    }
+
+    /** Deletes documents by terms in all shards */
+    private void deleteDocuments(Term... terms) throws IOException {
+        for (var writer : writers) {
+            writer.deleteDocuments(terms);
+        }
+    }
+
+    /** Runs an operation on all shard writers in parallel, as flushing and merging are slow */
+    private void forEachWriter(WriterOperation operation) throws IOException {
+        try {
+            Arrays.stream(writers).parallel().forEach(writer -> {
+                try {
+                    operation.apply(writer);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface WriterOperation {
+        void apply(org.apache.lucene.index.IndexWriter writer) throws IOException;
+    }
+
     @Override
     public void close() throws Exception {
-        // close reader first, so that writer closes faster
+        logLookupStatistics();
+
+        if (fingerprints != null) {
+            prune();
+        }
+
+        if (dedup || MultiTerms.getTerms(reader, CONTENT_FIELD) != null) {
+            pruneContents();
+        }
+
+        // close readers first, so that writer closes faster
         reader.close();
+        if (archiveReader != null) {
+            archiveReader.close();
+        }
+
+        // commit and close writers
+        forEachWriter(org.apache.lucene.index.IndexWriter::close);
+    }
+
+    /** Deletes documents of files that were in the index when it was opened, but were not refreshed since */
+    private void prune() throws IOException {
+        var terms = MultiTerms.getTerms(reader, FINGERPRINT_FIELD);
+        if (terms == null) {
+            return;
+        }
+
+        var pruned = 0;
+        var batch = new ArrayList<Term>(PRUNE_BATCH_SIZE);
+        var liveDocs = MultiBits.getLiveDocs(reader);
+        var termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef fingerprint;
+        while ((fingerprint = termsEnum.next()) != null) {
+            if (!fingerprints.isSeen(fingerprint)) {
+                // skip fingerprints of documents deleted already
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                if (!hasLiveDoc(postings, liveDocs)) {
+                    continue;
+                }
+                batch.add(new Term(FINGERPRINT_FIELD, BytesRef.deepCopyOf(fingerprint)));
+                if (batch.size() == PRUNE_BATCH_SIZE) {
+                    deleteDocuments(batch.toArray(new Term[0]));
+                    pruned += batch.size();
+                    batch.clear();
+                }
+            }
+        }
+        deleteDocuments(batch.toArray(new Term[0]));
+        pruned += batch.size();
+
+        LOG.info("Pruned files no longer present: " + pruned);
+    }
+
+    /** Deletes documents of contents no file refers to anymore */
+    private void pruneContents() throws IOException {
+        // look at the index as it is now, with all additions and deletions of this run
+        try (var current = openCurrentReader()) {
+            var terms = MultiTerms.getTerms(current, CONTENT_FIELD);
+            if (terms == null) {
+                return;
+            }
+
+            var pruned = 0;
+            var batch = new ArrayList<Term>(PRUNE_BATCH_SIZE);
+            var liveDocs = MultiBits.getLiveDocs(current);
+            var termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            BytesRef content;
+            while ((content = termsEnum.next()) != null) {
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                if (hasLiveDoc(postings, liveDocs) && !isReferenced(current, content)) {
+                    batch.add(new Term(CONTENT_FIELD, BytesRef.deepCopyOf(content)));
+                    if (batch.size() == PRUNE_BATCH_SIZE) {
+                        deleteDocuments(batch.toArray(new Term[0]));
+                        pruned += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+            deleteDocuments(batch.toArray(new Term[0]));
+            pruned += batch.size();
+
+            LOG.info("Pruned contents no longer referenced: " + pruned);
+        }
+    }
 
-        // prune
-        writer.flush();
-        writer.deleteDocuments(NumericDocValuesField.newSlowRangeQuery(LAST_UPDATED_FIELD, Long.MIN_VALUE, lastUpdated -1));
+    /** Opens a reader on all shards, including changes not committed yet */
+    private IndexReader openCurrentReader() throws IOException {
+        var readers = new IndexReader[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            readers[i] = DirectoryReader.open(writers[i]);
+        }
+        return new MultiReader(readers, true);
+    }
+
+    private static boolean isReferenced(IndexReader reader, BytesRef content) throws IOException {
+        var term = new Term(CONTENT_REF_FIELD, content);
+        for (var leaf : reader.leaves()) {
+            var postings = leaf.reader().postings(term, PostingsEnum.NONE);
+            if (postings != null && hasLiveDoc(postings, leaf.reader().getLiveDocs())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // commit and close writer
-        writer.close();
+    private void logLookupStatistics() {
+        var count = lookups.get();
+        if (dedup) {
+            LOG.info("Files sharing contents already indexed: " + dedupedFiles.get());
+            LOG.info("Archives copied from identical ones already indexed: " + copiedArchives.get());
+        }
+        if (count == 0) {
+            return;
+        }
+        var message = String.format("Fingerprint lookups: %d against %d known fingerprints, %.1f ms in memory",
+                count, fingerprints.size(), lookupNanos.get() / 1e6);
+        var searchNanos = sampleSearchNanos((int) Math.min(count, LOOKUP_SAMPLES));
+        if (searchNanos > 0) {
+            var estimatedSearchNanos = searchNanos * count;
+            message += String.format(" (estimated %.1f ms with index searches, %.1f ms saved)",
+                    estimatedSearchNanos / 1e6, (estimatedSearchNanos - lookupNanos.get()) / 1e6);
+        }
+        LOG.info(message);
+    }
+
+    /**
+     * Returns the average time of an index search for a fingerprint, on known fingerprints picked at random after all
+     * lookups are done, or 0 if there are none
+     */
+    private double sampleSearchNanos(int sampleCount) {
+        try {
+            var terms = MultiTerms.getTerms(reader, FINGERPRINT_FIELD);
+            if (terms == null) {
+                return 0;
+            }
+            var random = new Random();
+            var termsEnum = terms.iterator();
+            var samples = new ArrayList<Term>(2 * sampleCount);
+            for (int i = 0; i < 2 * sampleCount; i++) {
+                // fingerprints are hex digests, seek the first one after a random prefix
+                if (termsEnum.seekCeil(new BytesRef(String.format("%08x", random.nextInt()))) != TermsEnum.SeekStatus.END) {
+                    samples.add(new Term(FINGERPRINT_FIELD, BytesRef.deepCopyOf(termsEnum.term())));
+                }
+            }
+            var warmUp = samples.subList(0, samples.size() / 2);
+            var timed = samples.subList(samples.size() / 2, samples.size());
+            if (warmUp.isEmpty()) {
+                return 0;
+            }
+
+            // first searches also pay for class loading and JIT compilation, only time the others
+            for (var sample : warmUp) {
+                searcher.search(new TermQuery(sample), 1);
+            }
+            var start = System.nanoTime();
+            for (var sample : timed) {
+                searcher.search(new TermQuery(sample), 1);
+            }
+            return (double) (System.nanoTime() - start) / timed.size();
+        }
+        catch (IOException e) {
+            // the estimate is best-effort
+            return 0;
+        }
     }
 }
@@ -0,0 +1,262 @@
+package com.suse.pase.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.suse.pase.index.IndexSearcher.View;
+import com.suse.pase.query.ByContentQuery;
+import com.suse.pase.query.PatchQuery;
+import com.suse.pase.query.QueryResult;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Caches search results, evicting the least recently used ones beyond a maximum number of results.
+ *
+ * Results are cached by a key that identifies the query and the version of the index it ran on, so that no result is
+ * served after the index changed. The key is also suitable as an HTTP entity tag. Searches run on the view of the index
+ * their key was computed from, and concurrent searches with the same key run only once.
+ */
+public class SearchCache {
+    private final Cache<String, Object> cache;
+    /** Searches running, by key, so that the same search started meanwhile waits for their results */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> running = new ConcurrentHashMap<>();
+
+    /** @param maxResults maximum number of results kept in the cache, 0 disables caching */
+    public SearchCache(long maxResults) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxResults)
+                .weigher((String key, Object results) -> weight(results))
+                .recordStats()
+                .build();
+    }
+
+    /** Returns the key of a search for a patch on a view, given the search mode (e.g. applied or unapplied patch) */
+    public String key(View view, String mode, List<PatchQuery> targets) {
+        var hasher = newHasher(view, mode);
+        hasher.putInt(targets.size());
+        for (var target : targets) {
+            putString(hasher, target.getPath());
+            hasher.putInt(target.getChunks().size());
+            for (var chunk : target.getChunks()) {
+                putLines(hasher, chunk);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /** Returns the key of a search for files with the same content on a view, given the search mode */
+    public String key(View view, String mode, ByContentQuery query) {
+        var hasher = newHasher(view, mode);
+        putLines(hasher, query.getContent());
+        return hasher.hash().toString();
+    }
+
+    /** Searches a view for files that match the patch targets, or returns results cached with the same key */
+    @SuppressWarnings("unchecked")
+    public Map<String, List<QueryResult>> search(View view, String key, List<PatchQuery> targets) {
+        return (Map<String, List<QueryResult>>) get(key, () -> view.search(targets));
+    }
+
+    /**
+     * Searches a view for files that match the patch targets, passing the results of each file to a consumer as soon
+     * as they are available. Results cached with the same key, or of the same search running meanwhile, are passed
+     * all at once. If the consumer fails, the search still ends for other requests waiting for it, and the failure is
+     * thrown afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    public void search(View view, String key, List<PatchQuery> targets, BiConsumer<String, List<QueryResult>> consumer) {
+        var streamed = new AtomicBoolean();
+        // e.g. the client went away, which is no failure of the search
+        var consumerFailure = new AtomicReference<RuntimeException>();
+        var results = (Map<String, List<QueryResult>>) get(key, () -> {
+            streamed.set(true);
+            return view.search(targets, (path, pathResults) -> {
+                if (consumerFailure.get() == null) {
+                    try {
+                        consumer.accept(path, pathResults);
+                    }
+                    catch (RuntimeException e) {
+                        consumerFailure.set(e);
+                    }
+                }
+            });
+        });
+        if (consumerFailure.get() != null) {
+            throw consumerFailure.get();
+        }
+        if (!streamed.get()) {
+            results.forEach(consumer);
+        }
+    }
+
+    /**
+     * Searches a view for files that match many patches at once, except patches with results cached already, or
+     * searched by another batch meanwhile.
+     * @return a map from patch name to a map from filename to list of results, in the same order of patches
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Map<String, List<QueryResult>>> search(View view, String mode, Map<String, List<PatchQuery>> patches) {
+        // patches with the same key are searched once
+        var keys = new LinkedHashMap<String, String>();
+        var patchesByKey = new LinkedHashMap<String, List<PatchQuery>>();
+        patches.forEach((name, targets) -> {
+            var key = key(view, mode, targets);
+            keys.put(name, key);
+            patchesByKey.putIfAbsent(key, targets);
+        });
+
+        var results = getAll(patchesByKey.keySet(), uncached -> {
+            var uncachedPatches = new LinkedHashMap<String, List<PatchQuery>>();
+            for (var key : uncached) {
+                uncachedPatches.put(key, patchesByKey.get(key));
+            }
+            return new HashMap<String, Object>(view.search(uncachedPatches));
+        });
+
+        var resultMap = new LinkedHashMap<String, Map<String, List<QueryResult>>>();
+        keys.forEach((name, key) -> resultMap.put(name, (Map<String, List<QueryResult>>) results.get(key)));
+        return resultMap;
+    }
+
+    /** Searches a view for files with the same contents, or returns results cached with the same key */
+    @SuppressWarnings("unchecked")
+    public List<QueryResult> search(View view, String key, ByContentQuery query) {
+        return (List<QueryResult>) get(key, () -> view.search(query));
+    }
+
+    /** Searches a view for files with exactly the same lines, or returns results cached with the same key */
+    @SuppressWarnings("unchecked")
+    public List<QueryResult> searchExact(View view, String key, ByContentQuery query) {
+        return (List<QueryResult>) get(key, () -> view.searchExact(query));
+    }
+
+    /** Returns statistics about the cache: hits, misses and number of cached searches */
+    public Map<String, Number> getStats() {
+        var cacheStats = cache.stats();
+        var stats = new LinkedHashMap<String, Number>();
+        stats.put("hits", cacheStats.hitCount());
+        stats.put("misses", cacheStats.missCount());
+        stats.put("hit_rate", cacheStats.hitRate());
+        stats.put("entries", cache.size());
+        return stats;
+    }
+
+    private Object get(String key, Supplier<Object> search) {
+        return getAll(List.of(key), keys -> Map.of(key, search.get())).get(key);
+    }
+
+    /**
+     * Returns the results of each key: cached ones, those of searches running with the same key, once they end, and
+     * the others from a search of all of them at once
+     * @param search returns the results of each of the keys given
+     */
+    private Map<String, Object> getAll(Collection<String> keys, Function<Set<String>, Map<String, Object>> search) {
+        var results = new HashMap<String, Object>();
+        var others = new HashMap<String, CompletableFuture<Object>>();
+        var own = new LinkedHashMap<String, CompletableFuture<Object>>();
+        for (var key : keys) {
+            var cached = cache.getIfPresent(key);
+            if (cached != null) {
+                results.put(key, cached);
+                continue;
+            }
+            var future = new CompletableFuture<Object>();
+            var other = running.putIfAbsent(key, future);
+            if (other != null) {
+                others.put(key, other);
+                continue;
+            }
+            // a search with the same key might have ended between the two lookups
+            cached = cache.asMap().get(key);
+            if (cached != null) {
+                running.remove(key, future);
+                future.complete(cached);
+                results.put(key, cached);
+            }
+            else {
+                own.put(key, future);
+            }
+        }
+
+        if (!own.isEmpty()) {
+            try {
+                var found = search.apply(own.keySet());
+                own.forEach((key, future) -> {
+                    var value = found.get(key);
+                    // cached before the search stops running, so that no later search misses both
+                    cache.put(key, value);
+                    results.put(key, value);
+                    future.complete(value);
+                });
+            }
+            catch (RuntimeException e) {
+                own.values().forEach(future -> future.completeExceptionally(e));
+                throw e;
+            }
+            finally {
+                own.forEach(running::remove);
+            }
+        }
+
+        try {
+            for (var other : others.entrySet()) {
+                results.put(other.getKey(), other.getValue().get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    private static Hasher newHasher(View view, String mode) {
+        var hasher = Hashing.sha256().newHasher();
+        putString(hasher, view.getGeneration());
+        putString(hasher, mode);
+        return hasher;
+    }
+
+    /** Adds lines to a hash, along with their number, so that different lists never hash the same way */
+    private static void putLines(Hasher hasher, List<String> lines) {
+        hasher.putInt(lines.size());
+        for (var line : lines) {
+            putString(hasher, line);
+        }
+    }
+
+    /** Adds a string to a hash, along with its length, so that different strings never hash the same way */
+    private static void putString(Hasher hasher, String string) {
+        var bytes = string.getBytes(UTF_8);
+        hasher.putInt(bytes.length);
+        hasher.putBytes(bytes);
+    }
+
+    /** Cached results weigh one per result, plus one for the search itself */
+    private static int weight(Object results) {
+        if (results instanceof Map) {
+            return 1 + ((Map<?, ?>) results).values().stream().mapToInt(r -> ((List<?>) r).size()).sum();
+        }
+        return 1 + ((List<?>) results).size();
+    }
+}
@@ -0,0 +1,56 @@
+package com.suse.pase.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Thread pool searching slices of an index in parallel, keeping track of how busy it is */
+class SearchExecutor extends ThreadPoolExecutor {
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final ThreadLocal<Long> taskStartNanos = new ThreadLocal<>();
+
+    SearchExecutor(int threads) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            var thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName("search-" + thread.getName());
+            // searches never outlive the searcher, do not keep the JVM alive for them
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        taskStartNanos.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable throwable) {
+        busyNanos.addAndGet(System.nanoTime() - taskStartNanos.get());
+    }
+
+    /**
+     * Returns statistics about the pool: threads, tasks waiting in the queue, tasks running, tasks completed, seconds
+     * spent running tasks, seconds since the pool was created and the fraction of that time threads were busy.
+     */
+    Map<String, Number> getStats() {
+        var threads = getMaximumPoolSize();
+        var uptimeNanos = System.nanoTime() - startNanos;
+        var busy = busyNanos.get();
+
+        var stats = new LinkedHashMap<String, Number>();
+        stats.put("threads", threads);
+        stats.put("queued", getQueue().size());
+        stats.put("active", getActiveCount());
+        stats.put("completed", getCompletedTaskCount());
+        stats.put("busy_seconds", busy / 1e9);
+        stats.put("uptime_seconds", uptimeNanos / 1e9);
+        stats.put("utilization", (double) busy / uptimeNanos / threads);
+        return stats;
+    }
+}
@@ -0,0 +1,96 @@
+package com.suse.pase.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hashing;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Layout of an index split in shards.
+ *
+ * An index with one shard is a plain Lucene index at the index path. An index with N > 1 shards has N Lucene indexes
+ * in subdirectories named shard-0 to shard-(N-1). Documents are routed to shards by a hash of their path.
+ */
+class Shards {
+    private static final String SHARD_PREFIX = "shard-";
+
+    /** Returns the number of shards of an existing index, or 0 if there is no index at path */
+    static int count(Path path) throws IOException {
+        if (Files.isDirectory(path.resolve(SHARD_PREFIX + 0))) {
+            var count = 0;
+            while (Files.isDirectory(path.resolve(SHARD_PREFIX + count))) {
+                count++;
+            }
+            return count;
+        }
+        if (!Files.isDirectory(path)) {
+            return 0;
+        }
+        try (var directory = FSDirectory.open(path)) {
+            return DirectoryReader.indexExists(directory) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Returns the directories of all shards of an index.
+     * @param requested number of shards, or 0 to use the existing number (one for new indexes)
+     */
+    static List<Path> paths(Path path, int requested) throws IOException {
+        var existing = count(path);
+        if (requested > 0 && existing > 0 && requested != existing) {
+            throw new IllegalArgumentException("Index at " + path + " has " + existing + " shards, not " + requested);
+        }
+        var count = existing > 0 ? existing : Math.max(requested, 1);
+        if (count == 1) {
+            return List.of(path);
+        }
+        return IntStream.range(0, count)
+                .mapToObj(i -> path.resolve(SHARD_PREFIX + i))
+                .collect(Collectors.toList());
+    }
+
+    /** Returns the shard a document belongs to, given a stable key like its path */
+    static int route(String key, int count) {
+        if (count == 1) {
+            return 0;
+        }
+        return Math.floorMod(Hashing.murmur3_32().hashString(key, UTF_8).asInt(), count);
+    }
+
+    /**
+     * Opens a reader on all shards of an index, the shard readers are its children. Term statistics are computed across all shards, so that scores do
+     * not depend on the number of shards.
+     */
+    static IndexReader open(Path path) throws IOException {
+        var readers = new ArrayList<IndexReader>();
+        try {
+            for (var shard : paths(path, 0)) {
+                readers.add(DirectoryReader.open(FSDirectory.open(shard)));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            for (var reader : readers) {
+                reader.close();
+            }
+            throw e;
+        }
+        var reader = new MultiReader(readers.toArray(new IndexReader[0]), false);
+        // shard readers are now referenced by the MultiReader only, so that they can be shared with newer ones
+        for (var shardReader : readers) {
+            shardReader.decRef();
+        }
+        return reader;
+    }
+}
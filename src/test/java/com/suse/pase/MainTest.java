@@ -1,18 +1,56 @@
 package com.suse.pase;
 
+import static com.suse.pase.query.QueryFactory.buildUnappliedPatchQuery;
 import static java.nio.file.Files.createTempDirectory;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.suse.pase.cli.Index;
 import com.suse.pase.cli.Search;
+import com.suse.pase.index.IndexSearcher;
+import com.suse.pase.index.IndexWriter;
+import com.suse.pase.index.SearchCache;
+import com.suse.pase.query.PatchQuery;
+import com.suse.pase.query.QueryResult;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.CharTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
 
 /**
  * An integration tests that indexes and then searches in a code directory.
@@ -51,6 +89,380 @@ public class MainTest {
         assertEquals(23.785358428955078, third.score, 0.01);
     }
 
+    @org.junit.jupiter.api.Test
+    public void dedupSearchTest() throws Exception {
+        withIndex(new Index.Options().dedup(true), dedupIndexPath -> {
+            var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+            var expected = Search.search(indexPath, patchPath, false, false, false);
+            var results = Search.search(dedupIndexPath, patchPath, false, false, false);
+            assertEquals(expected.keySet(), results.keySet());
+            for (var file : expected.keySet()) {
+                assertEquals(expected.get(file).get(0).path, results.get(file).get(0).path);
+            }
+
+            // line weights count each distinct content once: 148 files share contents with others, so there are
+            // fewer documents and each matching line weighs slightly less than in searchTest
+            var first = results.get("core/src/main/java/org/apache/struts2/dispatcher/multipart/JakartaMultiPartRequest.java").get(0);
+            assertEquals(29.691402435302734, first.score, 0.0001);
+            var second = results.get("core/src/main/java/org/apache/struts2/dispatcher/multipart/JakartaStreamMultiPartRequest.java").get(0);
+            assertEquals(33.196678161621094, second.score, 0.0001);
+            var third = results.get("core/src/main/java/org/apache/struts2/dispatcher/multipart/MultiPartRequestWrapper.java").get(0);
+            assertEquals(23.620664596557617, third.score, 0.0001);
+        });
+    }
+
+    @org.junit.jupiter.api.Test
+    public void shardedSearchTest() throws Exception {
+        withIndex(new Index.Options().shards(3), shardedIndexPath -> {
+            var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+            assertSameBestResults(Search.search(indexPath, patchPath, false, false, false),
+                    Search.search(shardedIndexPath, patchPath, false, false, false));
+        });
+    }
+
+    @org.junit.jupiter.api.Test
+    public void hashedLinesSearchTest() throws Exception {
+        withIndex(new Index.Options().hashLines(true), hashedIndexPath -> {
+            var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+            var expected = Search.search(indexPath, patchPath, false, false, false);
+            assertSameBestResults(expected, Search.search(hashedIndexPath, patchPath, false, false, false));
+
+            // an index keeps the format of its terms, unless another one is asked for explicitly
+            Index.index(resourcePath.resolve("sources"), hashedIndexPath, new Index.Options());
+            assertSameBestResults(expected, Search.search(hashedIndexPath, patchPath, false, false, false));
+            assertThrows(IllegalArgumentException.class,
+                    () -> Index.index(resourcePath.resolve("sources"), indexPath, new Index.Options().hashLines(true)));
+        });
+    }
+
+    @org.junit.jupiter.api.Test
+    public void minHashSearchTest() throws Exception {
+        var dispatcherPath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/core/src/main/java/org/apache/struts2/dispatcher");
+        var filePath = dispatcherPath.resolve("multipart/JakartaMultiPartRequest.java");
+        withIndex(new Index.Options().minHash(true), minHashIndexPath -> {
+            var results = Search.search(minHashIndexPath, filePath, false, true, false).get(filePath.toString());
+            assertTrue(results.get(0).path.endsWith("multipart/JakartaMultiPartRequest.java"));
+            assertEquals(1, results.get(0).score, 0.0001);
+        });
+
+        // a file appended to a much bigger one has all its lines in the concatenation, but no near-duplicate of it
+        var smallPath = dispatcherPath.resolve("ContainerHolder.java");
+        var sourcePath = createTempDirectory(MainTest.class.getCanonicalName());
+        try {
+            Files.createSymbolicLink(sourcePath.resolve("sources"), resourcePath.resolve("sources"));
+            Files.write(sourcePath.resolve("concatenation.java"), Files.readAllLines(filePath));
+            Files.write(sourcePath.resolve("concatenation.java"), Files.readAllLines(smallPath), StandardOpenOption.APPEND);
+            withIndex(sourcePath, new Index.Options().followSymlinks(true), plainIndexPath -> {
+                var results = Search.search(plainIndexPath, smallPath, false, true, false).get(smallPath.toString());
+                assertEquals(2, results.size());
+                assertEquals(results.get(0).score, results.get(1).score, 0.0001);
+                assertTrue(results.stream().anyMatch(result -> result.path.endsWith("concatenation.java")));
+            });
+            withIndex(sourcePath, new Index.Options().followSymlinks(true).minHash(true), minHashIndexPath -> {
+                var results = Search.search(minHashIndexPath, smallPath, false, true, false).get(smallPath.toString());
+                assertEquals(1, results.size());
+                assertTrue(results.get(0).path.endsWith("dispatcher/ContainerHolder.java"));
+            });
+        }
+        finally {
+            FileUtils.deleteDirectory(sourcePath.toFile());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void exactSearchTest() throws Exception {
+        var filePath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/core/src/main/java/org/apache/struts2/dispatcher/multipart/JakartaMultiPartRequest.java");
+        var results = Search.search(indexPath, filePath, new Search.Options().exact(true)).get(filePath.toString());
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).path.endsWith("multipart/JakartaMultiPartRequest.java"));
+        assertEquals(1, results.get(0).score, 0.0001);
+
+        // no exact duplicate, falls back to similar files
+        var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+        assertEquals(Search.search(indexPath, patchPath, false, true, false).get(patchPath.toString()).size(),
+                Search.search(indexPath, patchPath, new Search.Options().exact(true)).get(patchPath.toString()).size());
+    }
+
+    @org.junit.jupiter.api.Test
+    public void commonLinesSearchTest() throws Exception {
+        var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+        var expected = Search.search(indexPath, patchPath, false, false, false);
+        var results = Search.search(indexPath, patchPath, new Search.Options().commonLineRatio(0.1));
+        assertEquals(expected.keySet(), results.keySet());
+        for (var file : expected.keySet()) {
+            assertEquals(expected.get(file).get(0).path, results.get(file).get(0).path);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void batchSearchTest() throws Exception {
+        var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+        var expected = Search.search(indexPath, patchPath, false, false, false);
+        try (var searcher = new IndexSearcher(indexPath, false);
+             var first = new FileInputStream(patchPath.toFile());
+             var second = new FileInputStream(patchPath.toFile())) {
+            var patches = new LinkedHashMap<String, List<PatchQuery>>();
+            patches.put("first", buildUnappliedPatchQuery(first));
+            patches.put("second", buildUnappliedPatchQuery(second));
+            var results = searcher.search(patches);
+            assertEquals(List.of("first", "second"), List.copyOf(results.keySet()));
+            for (var patchResults : results.values()) {
+                assertSameBestResults(expected, patchResults);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void streamingSearchTest() throws Exception {
+        var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+        try (var searcher = new IndexSearcher(indexPath, false);
+             var stream = new FileInputStream(patchPath.toFile())) {
+            var streamed = new LinkedHashMap<String, List<QueryResult>>();
+            var targets = buildUnappliedPatchQuery(stream);
+            var results = searcher.search(targets, streamed::put);
+            assertEquals(results, streamed);
+
+            // a consumer failing, like a client going away, fails its own request only: the shared search is cached
+            var cache = new SearchCache(100);
+            try (var view = searcher.acquireView()) {
+                var key = cache.key(view, "unapplied_patch", targets);
+                assertThrows(UncheckedIOException.class, () -> cache.search(view, key, targets, (path, pathResults) -> {
+                    throw new UncheckedIOException(new IOException("client went away"));
+                }));
+                assertSameBestResults(results, cache.search(view, key, targets));
+                assertEquals(1L, cache.getStats().get("hits"));
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void storedPathsSearchTest() throws Exception {
+        var patchPath = resourcePath.resolve("patches").resolve("CVE-2017-5638.patch");
+        var expected = Search.search(indexPath, patchPath, false, false, false);
+        var appendedPath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/core/src/main/java/org/apache/struts2/dispatcher/multipart/MultiPartRequestWrapper.java");
+        var oldIndexPath = createTempDirectory(MainTest.class.getCanonicalName());
+        try {
+            // Java sources, in the format of indexes written before paths had doc values
+            var lines = new Analyzer() {
+                @Override
+                protected TokenStreamComponents createComponents(String fieldName) {
+                    return new TokenStreamComponents(CharTokenizer.fromSeparatorCharPredicate(c -> c == '\r' || c == '\n'));
+                }
+            };
+            try (var writer = new org.apache.lucene.index.IndexWriter(FSDirectory.open(oldIndexPath), new IndexWriterConfig(lines));
+                 var paths = Files.walk(resourcePath.resolve("sources"))) {
+                for (var path : (Iterable<Path>) paths::iterator) {
+                    if (path.toString().endsWith(".java") && !path.equals(appendedPath)) {
+                        var doc = new Document();
+                        doc.add(new StringField("path", path.toString(), Store.YES));
+                        doc.add(new TextField("source", new String(Files.readAllBytes(path), StandardCharsets.UTF_8), Store.NO));
+                        writer.addDocument(doc);
+                    }
+                }
+            }
+
+            // appended files have doc values, first in a segment of their own, then in the same one as older files
+            try (var writer = new IndexWriter(oldIndexPath, new IndexWriter.Options().prune(false));
+                 var stream = new BufferedInputStream(Files.newInputStream(appendedPath))) {
+                writer.add(appendedPath.toString(), "appended", Optional.of(stream));
+            }
+            var results = Search.search(oldIndexPath, patchPath, false, false, false);
+            assertEquals(expected.keySet(), results.keySet());
+            for (var file : expected.keySet()) {
+                assertEquals(expected.get(file).get(0).path, results.get(file).get(0).path);
+            }
+            try (var writer = new org.apache.lucene.index.IndexWriter(FSDirectory.open(oldIndexPath), new IndexWriterConfig(lines))) {
+                writer.forceMerge(1);
+            }
+            assertSameBestResults(results, Search.search(oldIndexPath, patchPath, false, false, false));
+        }
+        finally {
+            FileUtils.deleteDirectory(oldIndexPath.toFile());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void pruneTest() throws Exception {
+        var dispatcherPath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/core/src/main/java/org/apache/struts2/dispatcher");
+        var smallPath = dispatcherPath.resolve("ContainerHolder.java");
+        for (var options : List.of(new Index.Options(), new Index.Options().dedup(true))) {
+            var sourcePath = createTempDirectory(MainTest.class.getCanonicalName());
+            var movedPath = createTempDirectory(MainTest.class.getCanonicalName()).resolve("removed.java");
+            var pruneIndexPath = createTempDirectory(MainTest.class.getCanonicalName());
+            try {
+                // enough files for the deleted document to stay in its segment, rather than be merged away
+                var keptPaths = new HashSet<String>();
+                for (int i = 0; i < 5; i++) {
+                    var keptPath = sourcePath.resolve("kept" + i + ".java");
+                    Files.copy(smallPath, keptPath);
+                    keptPaths.add(keptPath.toString());
+                }
+                var removedPath = sourcePath.resolve("removed.java");
+                Files.copy(smallPath, removedPath);
+                var allPaths = new HashSet<>(keptPaths);
+                allPaths.add(removedPath.toString());
+                Index.index(sourcePath, pruneIndexPath, options);
+                assertEquals(allPaths, exactDuplicates(pruneIndexPath, smallPath));
+
+                // files not found by a run are removed from the index
+                Files.move(removedPath, movedPath);
+                Index.index(sourcePath, pruneIndexPath, options);
+                assertEquals(keptPaths, exactDuplicates(pruneIndexPath, smallPath));
+
+                // and added again if they come back unchanged (same inode and times), with the same fingerprint
+                Files.move(movedPath, removedPath);
+                Index.index(sourcePath, pruneIndexPath, options);
+                assertEquals(allPaths, exactDuplicates(pruneIndexPath, smallPath));
+            }
+            finally {
+                FileUtils.deleteDirectory(sourcePath.toFile());
+                FileUtils.deleteDirectory(movedPath.getParent().toFile());
+                FileUtils.deleteDirectory(pruneIndexPath.toFile());
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void archiveDedupTest() throws Exception {
+        var zipPath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/xwork-core/src/test/resources/xwork-zip.zip");
+        var sourcePath = createTempDirectory(MainTest.class.getCanonicalName());
+        var xmlPath = createTempDirectory(MainTest.class.getCanonicalName()).resolve("xwork-zip.xml");
+        var copied = new ArrayList<String>();
+        var handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Archives copied")) {
+                    copied.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        var logger = Logger.getLogger(IndexWriter.class.getName());
+        logger.addHandler(handler);
+        try {
+            // identical archives in the same run: the second one is copied from the first one
+            Files.copy(zipPath, sourcePath.resolve("first.zip"));
+            Files.copy(zipPath, sourcePath.resolve("second.zip"));
+            try (var zip = new ZipFile(zipPath.toFile())) {
+                Files.copy(zip.getInputStream(zip.getEntry("xwork-zip.xml")), xmlPath);
+            }
+            withIndex(sourcePath, new Index.Options().archiveDedup(true), archiveIndexPath -> {
+                var duplicates = exactDuplicates(archiveIndexPath, xmlPath);
+                assertTrue(duplicates.contains(sourcePath.resolve("first.zip/xwork-zip.xml").toString()));
+                assertTrue(duplicates.contains(sourcePath.resolve("second.zip/xwork-zip.xml").toString()));
+            });
+            assertEquals(List.of("Archives copied from identical ones already indexed: 1"), copied);
+        }
+        finally {
+            logger.removeHandler(handler);
+            FileUtils.deleteDirectory(sourcePath.toFile());
+            FileUtils.deleteDirectory(xmlPath.getParent().toFile());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void watchTest() throws Exception {
+        var dispatcherPath = resourcePath.resolve("sources").resolve("struts-STRUTS_2_3_31/core/src/main/java/org/apache/struts2/dispatcher");
+        var bigPath = dispatcherPath.resolve("multipart/JakartaMultiPartRequest.java");
+        var smallPath = dispatcherPath.resolve("ContainerHolder.java");
+        var sourcePath = createTempDirectory(MainTest.class.getCanonicalName());
+        var watchIndexPath = createTempDirectory(MainTest.class.getCanonicalName());
+        var watch = new Thread(() -> {
+            try {
+                Index.watch(sourcePath, watchIndexPath, new Index.Options(), Duration.ofHours(1));
+            }
+            catch (Exception e) {
+                // interrupted at the end of the test
+            }
+        });
+        try {
+            // files staying the same, so that exact searches always find some file and never fall back
+            Files.copy(bigPath, sourcePath.resolve("big.java"));
+            Files.copy(smallPath, sourcePath.resolve("small.java"));
+            watch.start();
+            assertEventually(() -> exactDuplicates(watchIndexPath, bigPath).equals(Set.of(sourcePath.resolve("big.java").toString())));
+
+            var changedPath = sourcePath.resolve("changed.java");
+            Files.copy(smallPath, changedPath);
+            assertEventually(() -> exactDuplicates(watchIndexPath, smallPath).contains(changedPath.toString()));
+
+            Files.copy(bigPath, changedPath, StandardCopyOption.REPLACE_EXISTING);
+            assertEventually(() -> exactDuplicates(watchIndexPath, bigPath).contains(changedPath.toString()));
+            assertEquals(Set.of(sourcePath.resolve("small.java").toString()), exactDuplicates(watchIndexPath, smallPath));
+
+            Files.delete(changedPath);
+            assertEventually(() -> !exactDuplicates(watchIndexPath, bigPath).contains(changedPath.toString()));
+            assertEquals(Set.of(sourcePath.resolve("big.java").toString()), exactDuplicates(watchIndexPath, bigPath));
+        }
+        finally {
+            watch.interrupt();
+            watch.join();
+            FileUtils.deleteDirectory(sourcePath.toFile());
+            FileUtils.deleteDirectory(watchIndexPath.toFile());
+        }
+    }
+
+    /** Returns paths of indexed files with exactly the same lines as a file */
+    private static Set<String> exactDuplicates(Path indexPath, Path file) throws Exception {
+        return Search.search(indexPath, file, new Search.Options().exact(true)).get(file.toString()).stream()
+                .map(result -> result.path)
+                .collect(Collectors.toSet());
+    }
+
+    /** Checks that a condition becomes true within 30 seconds, e.g. once the index has changes of watched files */
+    private static void assertEventually(Callable<Boolean> condition) throws Exception {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try {
+                if (condition.call()) {
+                    return;
+                }
+            }
+            catch (IndexNotFoundException e) {
+                // not indexed yet
+            }
+            assertTrue(System.nanoTime() < deadline, "condition still false after 30 seconds");
+            Thread.sleep(100);
+        }
+    }
+
+    /** Runs a test on a new index of the test sources, indexed with options */
+    private static void withIndex(Index.Options options, IndexTest test) throws Exception {
+        withIndex(resourcePath.resolve("sources"), options, test);
+    }
+
+    /** Runs a test on a new index of sourcePath, indexed with options */
+    private static void withIndex(Path sourcePath, Index.Options options, IndexTest test) throws Exception {
+        var path = createTempDirectory(MainTest.class.getCanonicalName());
+        try {
+            Index.index(sourcePath, path, options);
+            test.run(path);
+        }
+        finally {
+            FileUtils.deleteDirectory(path.toFile());
+        }
+    }
+
+    private interface IndexTest {
+        void run(Path indexPath) throws Exception;
+    }
+
+    /** Checks that the best result of each file of a patch is the expected one, with the same score */
+    private static void assertSameBestResults(Map<String, List<QueryResult>> expected, Map<String, List<QueryResult>> results) {
+        assertEquals(expected.keySet(), results.keySet());
+        for (var file : expected.keySet()) {
+            assertEquals(expected.get(file).get(0).path, results.get(file).get(0).path);
+            assertEquals(expected.get(file).get(0).score, results.get(file).get(0).score, 0.0001);
+        }
+    }
+
     @AfterAll
     static void tear() throws IOException {
         FileUtils.deleteDirectory(indexPath.toFile());